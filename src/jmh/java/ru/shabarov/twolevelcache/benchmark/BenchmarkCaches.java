@@ -0,0 +1,63 @@
+package ru.shabarov.twolevelcache.benchmark;
+
+import org.springframework.util.FileSystemUtils;
+import ru.shabarov.twolevelcache.cache.BackpressurePolicy;
+import ru.shabarov.twolevelcache.cache.KeyValuePair;
+import ru.shabarov.twolevelcache.cache.TwoLevelCache;
+import ru.shabarov.twolevelcache.cache.TwoLevelCacheBuilder;
+import ru.shabarov.twolevelcache.storage.StorageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds caches of the benchmarks in their own temporary directories.
+ */
+final class BenchmarkCaches {
+
+    enum Expiry {
+        NONE,
+        AFTER_WRITE,
+        AFTER_ACCESS
+    }
+
+    private BenchmarkCaches() {
+    }
+
+    static TwoLevelCache<String, String> create(File directory, long memoryMaximumSize, StorageType storage,
+                                                Expiry expiry, boolean writeBehind) {
+        TwoLevelCacheBuilder<Object, Object> builder = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(memoryMaximumSize)
+                .storage(storage)
+                .persistenceDirectory(directory);
+        switch (expiry) {
+            case AFTER_WRITE:
+                builder.expireAfterWrite(1, TimeUnit.HOURS);
+                break;
+            case AFTER_ACCESS:
+                builder.expireAfterAccess(1, TimeUnit.HOURS);
+                break;
+            case NONE:
+            default:
+                break;
+        }
+        if (writeBehind) {
+            builder.writeBehind(1024, BackpressurePolicy.BLOCK);
+        }
+        return builder.build();
+    }
+
+    static void fill(TwoLevelCache<String, String> cache, List<KeyValuePair> keyValuePairs) {
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+    }
+
+    static void close(TwoLevelCache<String, String> cache, File directory) throws IOException {
+        cache.invalidateAll();
+        cache.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+}
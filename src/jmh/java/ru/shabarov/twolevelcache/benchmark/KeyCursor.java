@@ -0,0 +1,18 @@
+package ru.shabarov.twolevelcache.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Walks over the keys of a benchmark, every thread starts from its own position.
+ */
+@State(Scope.Thread)
+public class KeyCursor {
+
+    private int position = System.identityHashCode(Thread.currentThread());
+
+    int next(int bound) {
+        position = (position + 1) & Integer.MAX_VALUE;
+        return position % bound;
+    }
+}
@@ -0,0 +1,76 @@
+package ru.shabarov.twolevelcache.benchmark;
+
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.shabarov.twolevelcache.cache.KeyValuePair;
+import ru.shabarov.twolevelcache.cache.TwoLevelCache;
+import ru.shabarov.twolevelcache.storage.StorageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations on entries which are all held in memory, the persisted level is never touched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryHitBenchmark {
+
+    private static final int ENTRIES = 1024;
+
+    @Param({"NONE", "AFTER_WRITE", "AFTER_ACCESS"})
+    public BenchmarkCaches.Expiry expiry;
+
+    private File directory;
+    private TwoLevelCache<String, String> cache;
+    private List<KeyValuePair> keyValuePairs;
+
+    @Setup
+    public void setUp() {
+        directory = Files.createTempDir();
+        cache = BenchmarkCaches.create(directory, ENTRIES * 2, StorageType.FILE_PER_KEY, expiry, false);
+        keyValuePairs = new ArrayList<>(KeyValuePair.makeTestElements(ENTRIES));
+        BenchmarkCaches.fill(cache, keyValuePairs);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkCaches.close(cache, directory);
+    }
+
+    @Benchmark
+    public String getIfPresent(KeyCursor cursor) {
+        return cache.getIfPresent(keyValuePairs.get(cursor.next(ENTRIES)).getKey());
+    }
+
+    @Benchmark
+    public String getWithLoader(KeyCursor cursor) throws ExecutionException {
+        KeyValuePair keyValuePair = keyValuePairs.get(cursor.next(ENTRIES));
+        return cache.get(keyValuePair.getKey(), keyValuePair::getValue);
+    }
+
+    @Benchmark
+    public void put(KeyCursor cursor) {
+        KeyValuePair keyValuePair = keyValuePairs.get(cursor.next(ENTRIES));
+        cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+    }
+}
@@ -0,0 +1,83 @@
+package ru.shabarov.twolevelcache.benchmark;
+
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.shabarov.twolevelcache.cache.KeyValuePair;
+import ru.shabarov.twolevelcache.cache.TwoLevelCache;
+import ru.shabarov.twolevelcache.storage.StorageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Writes of entries which are not held in memory, every write persists an entry evicted from memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpillBenchmark {
+
+    private static final int MEMORY_ENTRIES = 16;
+    private static final int ENTRIES = 4096;
+    private static final int BATCH_SIZE = 64;
+
+    @Param({"FILE_PER_KEY", "SEGMENT_LOG"})
+    public StorageType storage;
+
+    @Param({"false", "true"})
+    public boolean writeBehind;
+
+    private File directory;
+    private TwoLevelCache<String, String> cache;
+    private List<KeyValuePair> keyValuePairs;
+    private List<Map<String, String>> batches;
+
+    @Setup
+    public void setUp() {
+        directory = Files.createTempDir();
+        cache = BenchmarkCaches.create(directory, MEMORY_ENTRIES, storage, BenchmarkCaches.Expiry.NONE, writeBehind);
+        keyValuePairs = new ArrayList<>(KeyValuePair.makeTestElements(ENTRIES));
+        batches = keyValuePairs.stream()
+                .collect(Collectors.groupingBy(keyValuePair -> KeyValuePair.fromKey(keyValuePair.getKey()) / BATCH_SIZE))
+                .values().stream()
+                .map(batch -> batch.stream().collect(Collectors.toMap(KeyValuePair::getKey, KeyValuePair::getValue)))
+                .collect(Collectors.toList());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkCaches.close(cache, directory);
+    }
+
+    @Benchmark
+    public void put(KeyCursor cursor) {
+        KeyValuePair keyValuePair = keyValuePairs.get(cursor.next(ENTRIES));
+        cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void putAll(KeyCursor cursor) {
+        cache.putAll(batches.get(cursor.next(batches.size())));
+    }
+}
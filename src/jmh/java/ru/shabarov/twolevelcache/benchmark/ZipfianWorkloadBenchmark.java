@@ -0,0 +1,94 @@
+package ru.shabarov.twolevelcache.benchmark;
+
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.shabarov.twolevelcache.cache.KeyValuePair;
+import ru.shabarov.twolevelcache.cache.TwoLevelCache;
+import ru.shabarov.twolevelcache.storage.StorageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent workloads over keys with a Zipfian popularity, where memory holds a small share of the keys,
+ * so the popular keys are mostly memory hits and the rest go to the persisted level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipfianWorkloadBenchmark {
+
+    private static final int ENTRIES = 16384;
+
+    @Param({"FILE_PER_KEY", "SEGMENT_LOG"})
+    public StorageType storage;
+
+    @Param({"1024"})
+    public int memoryEntries;
+
+    private File directory;
+    private TwoLevelCache<String, String> cache;
+    private List<KeyValuePair> keyValuePairs;
+    private ZipfianGenerator generator;
+
+    @Setup
+    public void setUp() {
+        directory = Files.createTempDir();
+        cache = BenchmarkCaches.create(directory, memoryEntries, storage, BenchmarkCaches.Expiry.NONE, false);
+        keyValuePairs = new ArrayList<>(KeyValuePair.makeTestElements(ENTRIES));
+        BenchmarkCaches.fill(cache, keyValuePairs);
+        generator = new ZipfianGenerator(ENTRIES);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkCaches.close(cache, directory);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String getIfPresent() {
+        return cache.getIfPresent(nextKeyValuePair().getKey());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public String mixedGetWithLoader() throws ExecutionException {
+        KeyValuePair keyValuePair = nextKeyValuePair();
+        return cache.get(keyValuePair.getKey(), keyValuePair::getValue);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void mixedPut() {
+        KeyValuePair keyValuePair = nextKeyValuePair();
+        cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+    }
+
+    private KeyValuePair nextKeyValuePair() {
+        return keyValuePairs.get((int) generator.next());
+    }
+}
@@ -0,0 +1,115 @@
+package ru.shabarov.twolevelcache.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking view of a {@link TwoLevelCache}. Lookups which are served from memory complete in the calling
+ * thread, everything which may touch the persisted level, including writes which may spill entries evicted from
+ * memory, runs on the given I/O executor. Memory is peeked inline without recording misses, so a lookup which
+ * goes on to the executor is counted once.
+ * <p>
+ * The executor is not owned by the cache and isn't shut down on {@link #close()}. Any executor fits, including
+ * a virtual thread per task one where it's available.
+ */
+public class AsyncTwoLevelCache<K, V> implements Closeable {
+
+    private final TwoLevelCache<K, V> cache;
+    private final Executor executor;
+
+    AsyncTwoLevelCache(TwoLevelCache<K, V> cache, Executor executor) {
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    /**
+     * @return A future of the value of the key on either level, or of {@code null} if there is none.
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        V memoryValue = cache.peekInMemory(key);
+        if (memoryValue != null) {
+            return CompletableFuture.completedFuture(memoryValue);
+        }
+        return CompletableFuture.supplyAsync(() -> cache.getIfPresent(key), executor);
+    }
+
+    /**
+     * @return A future of the value of the key on either level, which is loaded by the given loader
+     * if there is none. The future fails with the exception of the loader.
+     */
+    public CompletableFuture<V> getAsync(K key, Callable<? extends V> loader) {
+        V memoryValue = cache.peekInMemory(key);
+        if (memoryValue != null) {
+            return CompletableFuture.completedFuture(memoryValue);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.get(key, loader);
+            } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+                throw new CompletionException(e.getCause());
+            }
+        }, executor);
+    }
+
+    /**
+     * @return A future of the values of the keys which are present on either level.
+     */
+    public CompletableFuture<Map<K, V>> getAllAsync(Iterable<? extends K> keys) {
+        Map<K, V> memoryValues = cache.peekAllInMemory(keys);
+        Set<K> missedKeys = new LinkedHashSet<>();
+        for (K key : keys) {
+            if (!memoryValues.containsKey(key)) {
+                missedKeys.add(key);
+            }
+        }
+        if (missedKeys.isEmpty()) {
+            return CompletableFuture.completedFuture(memoryValues);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            Map<K, V> values = new HashMap<>(memoryValues);
+            values.putAll(cache.getAllPresent(missedKeys));
+            return ImmutableMap.copyOf(values);
+        }, executor);
+    }
+
+    public CompletableFuture<Void> putAsync(K key, V value) {
+        return CompletableFuture.runAsync(() -> cache.put(key, value), executor);
+    }
+
+    public CompletableFuture<Void> putAllAsync(Map<? extends K, ? extends V> values) {
+        return CompletableFuture.runAsync(() -> cache.putAll(values), executor);
+    }
+
+    public CompletableFuture<Void> invalidateAsync(K key) {
+        return CompletableFuture.runAsync(() -> cache.invalidate(key), executor);
+    }
+
+    public CompletableFuture<Void> invalidateAllAsync(Iterable<? extends K> keys) {
+        return CompletableFuture.runAsync(() -> cache.invalidateAll(keys), executor);
+    }
+
+    /**
+     * @return The blocking cache this view is backed by.
+     */
+    public TwoLevelCache<K, V> synchronous() {
+        return cache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.close();
+    }
+}
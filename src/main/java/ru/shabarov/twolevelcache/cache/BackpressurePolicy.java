@@ -0,0 +1,22 @@
+package ru.shabarov.twolevelcache.cache;
+
+/**
+ * Behaviour of the write-behind persisting when its staging buffer is full.
+ */
+public enum BackpressurePolicy {
+
+    /**
+     * The evicting thread waits until the background writer frees space in the buffer.
+     */
+    BLOCK,
+
+    /**
+     * The evicted entry is not persisted.
+     */
+    DROP,
+
+    /**
+     * The evicted entry is persisted by the evicting thread.
+     */
+    WRITE_INLINE
+}
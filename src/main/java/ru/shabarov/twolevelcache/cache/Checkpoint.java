@@ -0,0 +1,161 @@
+package ru.shabarov.twolevelcache.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shabarov.twolevelcache.storage.StoredEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+/**
+ * Durable snapshot of the persistence index, which is written when the cache is closed and read when it is started
+ * again. Keeps the eviction order of the persisted entries and the keys held in memory at the moment of closing,
+ * the latter are the ones preloaded on start.
+ * <p>
+ * The file is written to a temporary file and then atomically moved in place, it ends with a CRC32 of its content,
+ * so a torn or corrupt checkpoint is never trusted.
+ */
+final class Checkpoint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Checkpoint.class);
+
+    static final String FILE_NAME = ".checkpoint";
+    private static final String TEMPORARY_FILE_NAME = ".checkpoint.tmp";
+    private static final int MAGIC = 0x544c4350;
+    private static final int VERSION = 2;
+
+    private final List<StoredEntry> entries;
+    private final List<Object> hotKeys;
+
+    /**
+     * @param entries The persisted entries, the eldest first.
+     * @param hotKeys The keys which were held in memory.
+     */
+    Checkpoint(List<StoredEntry> entries, List<?> hotKeys) {
+        this.entries = new ArrayList<>(entries);
+        this.hotKeys = new ArrayList<>(hotKeys);
+    }
+
+    List<StoredEntry> getEntries() {
+        return entries;
+    }
+
+    List<Object> getHotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * Writes the checkpoint and syncs it to the disk. Keys which are not {@link Serializable} are skipped.
+     */
+    void write(File directory) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(entries.size());
+        for (StoredEntry entry : entries) {
+            output.writeUTF(entry.getId());
+            output.writeLong(entry.getPersistedTime());
+            output.writeLong(entry.getWeight());
+        }
+        List<byte[]> serializedKeys = new ArrayList<>(hotKeys.size());
+        for (Object hotKey : hotKeys) {
+            if (hotKey instanceof Serializable) {
+                ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(keyBytes)) {
+                    objectOutputStream.writeObject(hotKey);
+                }
+                serializedKeys.add(keyBytes.toByteArray());
+            } else {
+                LOGGER.trace("Key=" + hotKey + " is not serializable and is not checkpointed");
+            }
+        }
+        output.writeInt(serializedKeys.size());
+        for (byte[] serializedKey : serializedKeys) {
+            output.writeInt(serializedKey.length);
+            output.write(serializedKey);
+        }
+        output.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        output.writeLong(crc.getValue());
+        output.flush();
+
+        File temporaryFile = new File(directory, TEMPORARY_FILE_NAME);
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+            bytes.writeTo(fileOutputStream);
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), new File(directory, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The checkpoint of the directory, or nothing if there is none or it is corrupt.
+     */
+    static Optional<Checkpoint> read(File directory) {
+        File file = new File(directory, FILE_NAME);
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (bytes.length < 8) {
+                throw new IOException("Checkpoint is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+            input.skipBytes(bytes.length - 8);
+            if (input.readLong() != crc.getValue()) {
+                throw new IOException("Checkpoint checksum mismatch");
+            }
+            input = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unknown checkpoint format");
+            }
+            int entriesCount = input.readInt();
+            List<StoredEntry> entries = new ArrayList<>(entriesCount);
+            for (int i = 0; i < entriesCount; i++) {
+                entries.add(new StoredEntry(input.readUTF(), input.readLong(), input.readLong()));
+            }
+            int hotKeysCount = input.readInt();
+            List<Object> hotKeys = new ArrayList<>(hotKeysCount);
+            for (int i = 0; i < hotKeysCount; i++) {
+                byte[] serializedKey = new byte[input.readInt()];
+                input.readFully(serializedKey);
+                try (ObjectInputStream objectInputStream =
+                             new ObjectInputStream(new ByteArrayInputStream(serializedKey))) {
+                    hotKeys.add(objectInputStream.readObject());
+                } catch (ClassNotFoundException e) {
+                    LOGGER.trace("Checkpointed key of unknown class is skipped", e);
+                }
+            }
+            return Optional.of(new Checkpoint(entries, hotKeys));
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't read checkpoint=" + file.getAbsolutePath() + ", entries are verified instead", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Deletes the checkpoint, so it isn't trusted after the cache has changed the persisted entries.
+     */
+    static void delete(File directory) throws IOException {
+        Files.deleteIfExists(new File(directory, FILE_NAME).toPath());
+    }
+}
@@ -0,0 +1,95 @@
+package ru.shabarov.twolevelcache.cache;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counting Bloom filter of the persisted identifiers with 4-bit counters, so identifiers are removed as well
+ * as added. Ten counters and seven hashes are taken per identifier, which keeps the false positive rate below
+ * one percent up to the capacity.
+ * <p>
+ * Lookups don't lock, counters are published atomically. Updates aren't thread-safe, they are guarded by
+ * the persistence index. A saturated counter is never decremented, so a persisted identifier is never missed.
+ */
+final class CountingBloomFilter {
+
+    private static final int MINIMUM_CAPACITY = 64;
+    private static final int COUNTERS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+    private static final int COUNTERS_PER_SLOT = 16;
+    private static final long COUNTER_MASK = 0xfL;
+    private static final long MAXIMUM_COUNTERS = 1L << 30;
+
+    private final long capacity;
+    private final long counterMask;
+    private final AtomicLongArray table;
+
+    /**
+     * @param capacity An expected number of the identifiers.
+     */
+    CountingBloomFilter(long capacity) {
+        this.capacity = Math.max(capacity, MINIMUM_CAPACITY);
+        long counters = Math.min(Long.highestOneBit(this.capacity * COUNTERS_PER_ENTRY - 1) << 1, MAXIMUM_COUNTERS);
+        this.counterMask = counters - 1;
+        this.table = new AtomicLongArray((int) (counters / COUNTERS_PER_SLOT));
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Whether the identifier may have been added, {@code false} is definite.
+     */
+    boolean mightContain(String id) {
+        long[] hash = hash(id);
+        for (int i = 0; i < HASHES; i++) {
+            long counter = (hash[0] + i * hash[1]) & counterMask;
+            if (((table.get((int) (counter / COUNTERS_PER_SLOT)) >>> shiftOf(counter)) & COUNTER_MASK) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void add(String id) {
+        update(id, 1);
+    }
+
+    /**
+     * Removes an identifier, which must have been added before.
+     */
+    void remove(String id) {
+        update(id, -1);
+    }
+
+    private void update(String id, int delta) {
+        long[] hash = hash(id);
+        for (int i = 0; i < HASHES; i++) {
+            long counter = (hash[0] + i * hash[1]) & counterMask;
+            int slot = (int) (counter / COUNTERS_PER_SLOT);
+            int shift = shiftOf(counter);
+            long counters = table.get(slot);
+            long count = (counters >>> shift) & COUNTER_MASK;
+            if (count == COUNTER_MASK || (delta < 0 && count == 0)) {
+                continue;
+            }
+            table.set(slot, counters + ((long) delta << shift));
+        }
+    }
+
+    private static int shiftOf(long counter) {
+        return (int) (counter % COUNTERS_PER_SLOT) << 2;
+    }
+
+    /**
+     * @return Two halves of the 128-bit hash, combined into the seven ones.
+     */
+    private static long[] hash(String id) {
+        ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashString(id, StandardCharsets.UTF_8).asBytes());
+        return new long[]{hash.getLong(), hash.getLong()};
+    }
+}
@@ -0,0 +1,35 @@
+package ru.shabarov.twolevelcache.cache;
+
+/**
+ * Choice of the persisted entry evicted when the persisted level reaches its maximum size or bytes.
+ * Frequencies are estimated by a sketch of the memory misses and spills of the keys, so they outlive
+ * the round trips of the entries between the levels.
+ */
+public enum DiskEvictionPolicy {
+
+    /**
+     * The entry persisted first is evicted first.
+     */
+    FIFO,
+
+    /**
+     * The entry persisted or read least recently is evicted first.
+     */
+    LRU,
+
+    /**
+     * The entry with the lowest estimated frequency is evicted first, the eldest one among equals.
+     */
+    LFU,
+
+    /**
+     * Entries are evicted in the LRU order, but an entry spilled from memory is admitted only if its estimated
+     * frequency is higher than the one of the entry it would evict, otherwise the spilled entry is dropped.
+     * The memory level serves as the admission window.
+     */
+    W_TINY_LFU;
+
+    boolean isFrequencyBased() {
+        return this == LFU || this == W_TINY_LFU;
+    }
+}
@@ -0,0 +1,119 @@
+package ru.shabarov.twolevelcache.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-min sketch of access frequencies with 4-bit counters, four of which are taken per key.
+ * When the number of increments reaches ten times the capacity, all counters are halved, so the estimates
+ * follow recent accesses rather than the whole history. Increments are lock-free, so misses of the persistence
+ * index are counted without locking it; an increment racing with a reset or a growth may be lost.
+ */
+final class FrequencySketch {
+
+    private static final int MINIMUM_CAPACITY = 16;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final long COUNTER_MASK = 0xfL;
+
+    private volatile AtomicLongArray table;
+    private volatile int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity An expected number of the tracked keys.
+     */
+    FrequencySketch(long capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Grows the sketch, so it tracks the given number of keys accurately. Frequencies are forgotten on growth.
+     */
+    synchronized void ensureCapacity(long capacity) {
+        int maximum = (int) Math.min(Math.max(capacity, MINIMUM_CAPACITY), 1 << 30);
+        if (table != null && table.length() >= maximum) {
+            return;
+        }
+        int length = Integer.highestOneBit(maximum - 1) << 1;
+        AtomicLongArray grownTable =
+                new AtomicLongArray(table == null ? length : Math.max(length, table.length() << 1));
+        sampleSize = (int) Math.min(10L * grownTable.length(), Integer.MAX_VALUE);
+        size.set(0);
+        table = grownTable;
+    }
+
+    /**
+     * @return An estimated number of recent accesses of the key, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        AtomicLongArray currentTable = table;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int counter = (start + i) << 2;
+            frequency = Math.min(frequency,
+                    (int) ((currentTable.get(indexOf(currentTable, hash, i)) >>> counter) & COUNTER_MASK));
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        AtomicLongArray currentTable = table;
+        boolean isIncremented = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            isIncremented |= incrementAt(currentTable, indexOf(currentTable, hash, i), start + i);
+        }
+        if (isIncremented && size.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    private static boolean incrementAt(AtomicLongArray table, int index, int counterIndex) {
+        int counter = counterIndex << 2;
+        long mask = COUNTER_MASK << counter;
+        long value;
+        do {
+            value = table.get(index);
+            if ((value & mask) == mask) {
+                return false;
+            }
+        } while (!table.compareAndSet(index, value, value + (1L << counter)));
+        return true;
+    }
+
+    /**
+     * Halves all the counters, the odd ones lose their remainder. Concurrent increments racing to reset
+     * the sketch halve it once.
+     */
+    private synchronized void reset() {
+        if (size.get() < sampleSize) {
+            return;
+        }
+        AtomicLongArray currentTable = table;
+        int remainders = 0;
+        for (int i = 0; i < currentTable.length(); i++) {
+            long value = currentTable.get(i);
+            remainders += Long.bitCount(value & ONE_MASK);
+            currentTable.set(i, (value >>> 1) & RESET_MASK);
+        }
+        size.set((size.get() >>> 1) - (remainders >>> 2));
+    }
+
+    private static int indexOf(AtomicLongArray table, int hash, int i) {
+        long indexHash = (hash + SEEDS[i]) * SEEDS[i];
+        indexHash += indexHash >>> 32;
+        return (int) indexHash & (table.length() - 1);
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,334 @@
+package ru.shabarov.twolevelcache.cache;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Two-level cache which loads missing values by a cache loader. With refresh after write, a value older than
+ * the refresh interval keeps being served while the loader reloads it on a bounded pool. The reloaded value replaces
+ * the stale one in memory, or its persisted or staged copy if the stale value has been spilled in the meantime.
+ * A reloaded value is dropped if the stale one has been changed or invalidated since.
+ * <p>
+ * Write times of the served values are tracked by the cache, a value read for the first time is timed by its
+ * persisting time, or from then on if it isn't persisted.
+ */
+public class LoadingTwoLevelCache<K, V> extends TwoLevelCache<K, V> implements LoadingCache<K, V> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadingTwoLevelCache.class);
+    private static final int MINIMUM_PRUNED_WRITE_TIMES = 1024;
+
+    private final CacheLoader<? super K, V> loader;
+    private final Optional<Long> refreshAfterWriteTime;
+    private final ThreadPoolExecutor refreshExecutorService;
+    private final ConcurrentMap<K, Long> writeTimes = new ConcurrentHashMap<>();
+    private final Set<K> refreshingKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    LoadingTwoLevelCache(TwoLevelCacheBuilder<? super K, ? super V> builder, CacheLoader<? super K, V> loader) {
+        super(builder);
+        this.loader = loader;
+        this.refreshAfterWriteTime = Optional.ofNullable(builder.getRefreshAfterWriteTime());
+        this.refreshExecutorService = new ThreadPoolExecutor(builder.getRefreshThreads(), builder.getRefreshThreads(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(builder.getRefreshQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("two-level-cache-refresh-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public V get(K key) throws ExecutionException {
+        return get(key, () -> loader.load(key));
+    }
+
+    @Override
+    public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException {
+        Optional<Long> persistedTime = persistedTimeIfUntimed(key);
+        V value = super.get(key, valueLoader);
+        refreshIfStale(key, value, persistedTime);
+        return value;
+    }
+
+    @Override
+    public V getUnchecked(K key) {
+        try {
+            return get(key);
+        } catch (ExecutionException e) {
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * Takes the present values at once and loads the missing ones by a single {@link CacheLoader#loadAll(Iterable)},
+     * or one by one if the loader doesn't implement bulk loading. Extra values loaded in bulk are cached as well.
+     */
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+        Map<K, V> present = getAllPresent(keys);
+        Set<K> missingKeys = new LinkedHashSet<>();
+        for (K key : keys) {
+            if (!present.containsKey(key)) {
+                missingKeys.add(key);
+            }
+        }
+        Map<K, V> loaded = missingKeys.isEmpty() ? Collections.emptyMap() : loadAll(missingKeys);
+        ImmutableMap.Builder<K, V> result = ImmutableMap.builder();
+        Set<K> added = new HashSet<>();
+        for (K key : keys) {
+            if (added.add(key)) {
+                V value = present.get(key);
+                result.put(key, value != null ? value : loaded.get(key));
+            }
+        }
+        return result.build();
+    }
+
+    @Override
+    @Deprecated
+    public V apply(K key) {
+        return getUnchecked(key);
+    }
+
+    /**
+     * Reloads a present value in background, the present value keeps being served meanwhile.
+     * A missing value is loaded at once. Failures are logged rather than thrown.
+     */
+    @Override
+    public void refresh(K key) {
+        V value = super.getIfPresent(key);
+        if (value == null) {
+            try {
+                get(key);
+            } catch (ExecutionException | RuntimeException e) {
+                LOGGER.warn("Couldn't load value of key=" + key + " on refresh", e);
+            }
+        } else {
+            scheduleReload(key, value);
+        }
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        @SuppressWarnings("unchecked")
+        K castKey = (K) key;
+        Optional<Long> persistedTime = persistedTimeIfUntimed(castKey);
+        V value = super.getIfPresent(key);
+        if (value != null) {
+            refreshIfStale(castKey, value, persistedTime);
+        }
+        return value;
+    }
+
+    @Override
+    public ImmutableMap<K, V> getAllPresent(Iterable<?> keys) {
+        Map<K, Optional<Long>> persistedTimes = new HashMap<>();
+        for (Object key : keys) {
+            @SuppressWarnings("unchecked")
+            K castKey = (K) key;
+            persistedTimes.put(castKey, persistedTimeIfUntimed(castKey));
+        }
+        ImmutableMap<K, V> present = super.getAllPresent(keys);
+        for (Map.Entry<K, V> entry : present.entrySet()) {
+            refreshIfStale(entry.getKey(), entry.getValue(), persistedTimes.get(entry.getKey()));
+        }
+        return present;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        super.put(key, value);
+        recordWrite(key);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        super.putAll(m);
+        m.keySet().forEach(this::recordWrite);
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        super.invalidate(key);
+        writeTimes.remove(key);
+    }
+
+    @Override
+    public void invalidateAll(Iterable<?> keys) {
+        super.invalidateAll(keys);
+        keys.forEach(writeTimes::remove);
+    }
+
+    @Override
+    public void invalidateAll() {
+        super.invalidateAll();
+        writeTimes.clear();
+    }
+
+    /**
+     * Lets the running and queued reloads complete before the cache is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        refreshExecutorService.shutdown();
+        try {
+            refreshExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+    /**
+     * @return A persisting time of the value of the key, which is looked up only if the value isn't timed yet
+     * and is about to be moved to memory.
+     */
+    private Optional<Long> persistedTimeIfUntimed(K key) {
+        if (!refreshAfterWriteTime.isPresent() || writeTimes.containsKey(key)) {
+            return Optional.empty();
+        }
+        return persistedTime(key);
+    }
+
+    private void refreshIfStale(K key, V value, Optional<Long> persistedTime) {
+        if (!refreshAfterWriteTime.isPresent()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long writeTime = writeTimes.get(key);
+        if (writeTime == null) {
+            writeTime = writeTimes.computeIfAbsent(key, k -> persistedTime.orElse(now));
+            pruneWriteTimes();
+        }
+        if (now - writeTime >= refreshAfterWriteTime.get()) {
+            scheduleReload(key, value);
+        }
+    }
+
+    /**
+     * Reloads the value on the refresh pool unless it's being reloaded already. If the pool is saturated,
+     * the reload is skipped.
+     */
+    private void scheduleReload(K key, V staleValue) {
+        if (!refreshingKeys.add(key)) {
+            return;
+        }
+        try {
+            refreshExecutorService.execute(() -> reload(key, staleValue));
+        } catch (RejectedExecutionException e) {
+            refreshingKeys.remove(key);
+            LOGGER.trace("Value of key=" + key + " is not refreshed as the refresh queue is full");
+        }
+    }
+
+    private void reload(K key, V staleValue) {
+        try {
+            V value = loader.reload(key, staleValue).get();
+            if (value == null) {
+                throw new CacheLoader.InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+            }
+            if (getUnderlyingCache().asMap().replace(key, staleValue, value) ||
+                    replacePersisted(key, staleValue, value)) {
+                writeTimes.put(key, System.currentTimeMillis());
+            } else {
+                LOGGER.trace("Reloaded value of key=" + key + " is dropped as the stale one has changed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't refresh value of key=" + key, e);
+        } finally {
+            refreshingKeys.remove(key);
+        }
+    }
+
+    /**
+     * Loads the values of the keys in bulk and puts all the loaded values to the cache.
+     * Failures of the loader are wrapped as by {@link LoadingCache#getAll(Iterable)}.
+     */
+    private Map<K, V> loadAll(Set<K> keys) throws ExecutionException {
+        Map<?, V> loaded;
+        try {
+            loaded = loader.loadAll(keys);
+        } catch (CacheLoader.UnsupportedLoadingOperationException e) {
+            Map<K, V> values = new HashMap<>();
+            for (K key : keys) {
+                values.put(key, get(key));
+            }
+            return values;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (RuntimeException e) {
+            throw new UncheckedExecutionException(e);
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        } catch (Error e) {
+            throw new ExecutionError(e);
+        }
+        if (loaded == null) {
+            throw new CacheLoader.InvalidCacheLoadException(loader + " returned null map from loadAll");
+        }
+        Map<K, V> values = new HashMap<>();
+        for (Map.Entry<?, V> entry : loaded.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new CacheLoader.InvalidCacheLoadException(loader + " returned null keys or values from loadAll");
+            }
+            @SuppressWarnings("unchecked")
+            K key = (K) entry.getKey();
+            values.put(key, entry.getValue());
+        }
+        putAll(values);
+        for (K key : keys) {
+            if (!values.containsKey(key)) {
+                throw new CacheLoader.InvalidCacheLoadException("loadAll failed to return a value for " + key);
+            }
+        }
+        return values;
+    }
+
+    private void recordWrite(K key) {
+        if (refreshAfterWriteTime.isPresent()) {
+            writeTimes.put(key, System.currentTimeMillis());
+            pruneWriteTimes();
+        }
+    }
+
+    /**
+     * Forgets write times of the keys which have left both memory and the persisted level once the times outnumber
+     * the cached entries twice, as keys expired or removed through {@link #asMap()} go unnoticed. A spilled key
+     * keeps its write time rather than being timed from its spill.
+     */
+    private void pruneWriteTimes() {
+        if (writeTimes.size() > 2 * (getUnderlyingCache().size() + sizeOfPersisted()) + MINIMUM_PRUNED_WRITE_TIMES &&
+                pruning.compareAndSet(false, true)) {
+            try {
+                writeTimes.keySet().removeIf(key ->
+                        !getUnderlyingCache().asMap().containsKey(key) && !persistedTime(key).isPresent());
+            } finally {
+                pruning.set(false);
+            }
+        }
+    }
+}
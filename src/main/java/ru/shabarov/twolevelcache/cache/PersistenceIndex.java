@@ -0,0 +1,297 @@
+package ru.shabarov.twolevelcache.cache;
+
+import ru.shabarov.twolevelcache.storage.StoredEntry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the persisted cache entries, ordered from the eldest to the youngest persisted entry,
+ * or the least recently used one for the LRU based policies.
+ * Keeps size checks and size-based eviction of the file level independent from the number of entries on disk,
+ * the total weight of the entries is maintained on every change.
+ * Entries are additionally ordered by their persisting time, so time-based expiration only touches due entries,
+ * and by their estimated frequency for the {@link DiskEvictionPolicy#LFU} policy.
+ * <p>
+ * Identifiers of the entries are kept in a counting Bloom filter as well, which tells definite misses without
+ * locking the index. The filter is rebuilt twice as big when the entries outgrow it.
+ */
+class PersistenceIndex {
+
+    private final DiskEvictionPolicy policy;
+    private final Optional<FrequencySketch> frequencySketch;
+    private final LinkedHashMap<String, Entry> persistedEntries = new LinkedHashMap<>();
+    private final NavigableSet<Entry> persistedTimeOrder = new TreeSet<>(
+            Comparator.comparingLong((Entry e) -> e.persistedTime).thenComparingLong(e -> e.sequence));
+    private final NavigableSet<Entry> frequencyOrder = new TreeSet<>(
+            Comparator.comparingInt((Entry e) -> e.frequency).thenComparingLong(e -> e.sequence));
+    private volatile CountingBloomFilter persistedFilter;
+    private long sequence;
+    private long totalWeight;
+
+    /**
+     * @param policy          A policy choosing the evicted entries.
+     * @param expectedEntries An expected number of the persisted entries, which sizes the frequency sketch.
+     */
+    PersistenceIndex(DiskEvictionPolicy policy, long expectedEntries) {
+        this.policy = policy;
+        this.frequencySketch = policy.isFrequencyBased() ?
+                Optional.of(new FrequencySketch(expectedEntries)) : Optional.empty();
+        this.persistedFilter = new CountingBloomFilter(expectedEntries);
+    }
+
+    synchronized void put(String id, long persistedTime, long weight) {
+        remove(id);
+        Entry entry = new Entry(id, persistedTime, weight, sequence++);
+        persistedEntries.put(id, entry);
+        persistedTimeOrder.add(entry);
+        if (policy == DiskEvictionPolicy.LFU) {
+            entry.frequency = frequencySketch.get().frequency(id);
+            frequencyOrder.add(entry);
+        }
+        frequencySketch.ifPresent(sketch -> sketch.ensureCapacity(persistedEntries.size()));
+        totalWeight += weight;
+        if (persistedEntries.size() > persistedFilter.capacity()) {
+            CountingBloomFilter grownFilter = new CountingBloomFilter(persistedFilter.capacity() * 2);
+            persistedEntries.keySet().forEach(grownFilter::add);
+            persistedFilter = grownFilter;
+        } else {
+            persistedFilter.add(id);
+        }
+    }
+
+    /**
+     * @return Whether the entry may be persisted, {@code false} is definite. Doesn't lock the index.
+     */
+    boolean mightContain(String id) {
+        return persistedFilter.mightContain(id);
+    }
+
+    /**
+     * Records a lookup or a spill of the entry, which makes it recently used and more frequent.
+     * The entry doesn't have to be persisted, its frequency is tracked anyway.
+     */
+    synchronized void recordAccess(String id) {
+        frequencySketch.ifPresent(sketch -> sketch.increment(id));
+        Entry entry = persistedEntries.get(id);
+        if (entry == null) {
+            return;
+        }
+        switch (policy) {
+            case LRU:
+            case W_TINY_LFU:
+                persistedEntries.remove(id);
+                persistedEntries.put(id, entry);
+                break;
+            case LFU:
+                frequencyOrder.remove(entry);
+                entry.frequency = frequencySketch.get().frequency(id);
+                frequencyOrder.add(entry);
+                break;
+            case FIFO:
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Records a lookup of an entry which is definitely not persisted, it only makes the entry more frequent
+     * for the frequency based policies. Doesn't lock the index.
+     */
+    void recordMiss(String id) {
+        frequencySketch.ifPresent(sketch -> sketch.increment(id));
+    }
+
+    /**
+     * @return Whether the candidate entry may be persisted at the cost of evicting the victim one.
+     */
+    synchronized boolean admits(String candidateId, String victimId) {
+        if (policy != DiskEvictionPolicy.W_TINY_LFU) {
+            return true;
+        }
+        return frequencySketch.get().frequency(candidateId) > frequencySketch.get().frequency(victimId);
+    }
+
+    synchronized boolean remove(String id) {
+        Entry entry = persistedEntries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        persistedTimeOrder.remove(entry);
+        frequencyOrder.remove(entry);
+        totalWeight -= entry.weight;
+        persistedFilter.remove(id);
+        return true;
+    }
+
+    synchronized boolean contains(String id) {
+        return persistedEntries.containsKey(id);
+    }
+
+    synchronized boolean isPersistedBefore(String id, long time) {
+        Entry entry = persistedEntries.get(id);
+        return entry != null && entry.persistedTime < time;
+    }
+
+    synchronized int size() {
+        return persistedEntries.size();
+    }
+
+    synchronized long totalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * @return A weight of the entry, or {@code null} if it isn't persisted.
+     */
+    synchronized Long weight(String id) {
+        Entry entry = persistedEntries.get(id);
+        return entry == null ? null : entry.weight;
+    }
+
+    /**
+     * @return A version of the entry, which changes whenever the entry is persisted again,
+     * or {@code null} if it isn't persisted.
+     */
+    synchronized Long version(String id) {
+        Entry entry = persistedEntries.get(id);
+        return entry == null ? null : entry.sequence;
+    }
+
+    /**
+     * Counts a hit of the entry within a window, which starts with the first hit and restarts with the first hit
+     * after it's over. Hits are forgotten when the entry is persisted again.
+     *
+     * @param time   A moment in milliseconds of the hit.
+     * @param hits   A number of hits the entry is checked for.
+     * @param window A duration in milliseconds of the window.
+     * @return Whether the entry has been hit the given number of times within the current window.
+     */
+    synchronized boolean recordHit(String id, long time, int hits, long window) {
+        Entry entry = persistedEntries.get(id);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.hits == 0 || time - entry.firstHitTime > window) {
+            entry.hits = 0;
+            entry.firstHitTime = time;
+        }
+        return ++entry.hits >= hits;
+    }
+
+    /**
+     * @return A moment in milliseconds the entry has been persisted at, or {@code null} if it isn't persisted.
+     */
+    synchronized Long persistedTime(String id) {
+        Entry entry = persistedEntries.get(id);
+        return entry == null ? null : entry.persistedTime;
+    }
+
+    /**
+     * @param incomingWeights Weights of the entries about to be persisted, replacing their current versions.
+     * @param maximumEntries  A maximum number of the entries.
+     * @param maximumWeight   A maximum total weight of the entries.
+     * @return Whether the index would exceed any of the limits with the incoming entries persisted.
+     */
+    synchronized boolean exceeds(Map<String, Long> incomingWeights, long maximumEntries, long maximumWeight) {
+        long entries = persistedEntries.size();
+        long weight = totalWeight;
+        for (Map.Entry<String, Long> incomingWeight : incomingWeights.entrySet()) {
+            Entry entry = persistedEntries.get(incomingWeight.getKey());
+            if (entry == null) {
+                entries++;
+            } else {
+                weight -= entry.weight;
+            }
+            weight += incomingWeight.getValue();
+        }
+        return entries > maximumEntries || weight > maximumWeight;
+    }
+
+    /**
+     * @return An identifier of the entry to be evicted first according to the policy.
+     */
+    synchronized Optional<String> victim() {
+        if (policy == DiskEvictionPolicy.LFU) {
+            return frequencyOrder.isEmpty() ? Optional.empty() : Optional.of(frequencyOrder.first().id);
+        }
+        Iterator<String> iterator = persistedEntries.keySet().iterator();
+        return iterator.hasNext() ? Optional.of(iterator.next()) : Optional.empty();
+    }
+
+    /**
+     * @param time A moment of time in milliseconds.
+     * @return Identifiers of the entries persisted before the given moment, the eldest first.
+     */
+    synchronized List<String> persistedBefore(long time) {
+        List<String> ids = new ArrayList<>();
+        for (Entry entry : persistedTimeOrder) {
+            if (entry.persistedTime >= time) {
+                break;
+            }
+            ids.add(entry.id);
+        }
+        return ids;
+    }
+
+    /**
+     * @return A snapshot of the persisted entries, the eldest or the least recently used first.
+     */
+    synchronized List<StoredEntry> entries() {
+        List<StoredEntry> entries = new ArrayList<>(persistedEntries.size());
+        for (Entry entry : persistedEntries.values()) {
+            entries.add(new StoredEntry(entry.id, entry.persistedTime, entry.weight));
+        }
+        return entries;
+    }
+
+    synchronized void clear() {
+        persistedEntries.clear();
+        persistedTimeOrder.clear();
+        frequencyOrder.clear();
+        totalWeight = 0;
+        persistedFilter = new CountingBloomFilter(persistedFilter.capacity());
+    }
+
+    /**
+     * Builds an index of the entries already present in a storage.
+     *
+     * @param storedEntries   The stored entries, the eldest persisted first.
+     * @param policy          A policy choosing the evicted entries.
+     * @param expectedEntries An expected number of the persisted entries.
+     * @return The index of the persisted entries.
+     */
+    static PersistenceIndex rebuild(List<StoredEntry> storedEntries, DiskEvictionPolicy policy,
+                                    long expectedEntries) {
+        PersistenceIndex index = new PersistenceIndex(policy, expectedEntries);
+        for (StoredEntry storedEntry : storedEntries) {
+            index.put(storedEntry.getId(), storedEntry.getPersistedTime(), storedEntry.getWeight());
+        }
+        return index;
+    }
+
+    private static final class Entry {
+
+        private final String id;
+        private final long persistedTime;
+        private final long weight;
+        private final long sequence;
+        private int frequency;
+        private int hits;
+        private long firstHitTime;
+
+        private Entry(String id, long persistedTime, long weight, long sequence) {
+            this.id = id;
+            this.persistedTime = persistedTime;
+            this.weight = weight;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ru.shabarov.twolevelcache.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Choice of the persisted hits which move their entries back to memory. A promoted entry may evict a hotter one
+ * from memory, which is spilled in turn, so promoting fewer hits keeps memory for the hot entries and cuts spills.
+ * Hits of bulk lookups are never counted unless every hit is promoted.
+ */
+public final class PromotionPolicy {
+
+    private static final PromotionPolicy ALWAYS = new PromotionPolicy(1, Long.MAX_VALUE);
+    private static final PromotionPolicy NEVER = new PromotionPolicy(0, 0);
+
+    private final int hits;
+    private final long window;
+
+    private PromotionPolicy(int hits, long window) {
+        this.hits = hits;
+        this.window = window;
+    }
+
+    /**
+     * @return A policy promoting every persisted hit, the default one.
+     */
+    public static PromotionPolicy always() {
+        return ALWAYS;
+    }
+
+    /**
+     * @return A policy serving persisted entries from the persisted level only.
+     */
+    public static PromotionPolicy never() {
+        return NEVER;
+    }
+
+    /**
+     * @param hits     A number of hits of a persisted entry which promote it.
+     * @param duration A window of the hits, which starts with the first hit of the entry.
+     * @param unit     A time unit of the window.
+     * @return A policy promoting the persisted entries hit the given number of times within the window.
+     */
+    public static PromotionPolicy afterHits(int hits, long duration, TimeUnit unit) {
+        checkArgument(hits > 0, "promotion hits must be positive: %s", hits);
+        checkArgument(duration > 0, "promotion window must be positive: %s", duration);
+        return hits == 1 ? ALWAYS : new PromotionPolicy(hits, unit.toMillis(duration));
+    }
+
+    boolean isAlways() {
+        return this == ALWAYS;
+    }
+
+    boolean isNever() {
+        return this == NEVER;
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    long getWindow() {
+        return window;
+    }
+
+    @Override
+    public String toString() {
+        return isAlways() ? "ALWAYS" : isNever() ? "NEVER" : "AFTER_HITS{hits=" + hits + ", window=" + window + '}';
+    }
+}
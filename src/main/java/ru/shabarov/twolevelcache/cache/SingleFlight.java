@@ -0,0 +1,115 @@
+package ru.shabarov.twolevelcache.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent lookups of the same key: the first caller looks the value up, the others wait for
+ * its result instead of repeating the lookup.
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param key    A key of the value.
+     * @param lookup A lookup of the value, which returns {@code null} if there is none.
+     * @return The value looked up by this or a concurrent caller.
+     */
+    V execute(K key, Lookup<V> lookup) throws IOException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> leadingFlight = flights.putIfAbsent(key, flight);
+        if (leadingFlight != null) {
+            return await(leadingFlight);
+        }
+        try {
+            V value = lookup.lookup();
+            flight.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Looks the keys which aren't looked up by concurrent callers up at once and waits for the others.
+     *
+     * @param keys   Keys of the values.
+     * @param lookup A lookup of the values of the given keys, which omits the keys without values.
+     * @return The found values by their keys.
+     */
+    Map<K, V> executeAll(Collection<K> keys, BatchLookup<K, V> lookup) throws IOException {
+        Map<K, CompletableFuture<V>> ledFlights = new HashMap<>();
+        Map<K, CompletableFuture<V>> followedFlights = new HashMap<>();
+        for (K key : keys) {
+            CompletableFuture<V> flight = new CompletableFuture<>();
+            CompletableFuture<V> leadingFlight = flights.putIfAbsent(key, flight);
+            if (leadingFlight == null) {
+                ledFlights.put(key, flight);
+            } else {
+                followedFlights.put(key, leadingFlight);
+            }
+        }
+        Map<K, V> values = new HashMap<>();
+        try {
+            if (!ledFlights.isEmpty()) {
+                values.putAll(lookup.lookupAll(new ArrayList<>(ledFlights.keySet())));
+            }
+            for (Map.Entry<K, CompletableFuture<V>> ledFlight : ledFlights.entrySet()) {
+                ledFlight.getValue().complete(values.get(ledFlight.getKey()));
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            ledFlights.values().forEach(flight -> flight.completeExceptionally(e));
+            throw e;
+        } finally {
+            ledFlights.forEach(flights::remove);
+        }
+        for (Map.Entry<K, CompletableFuture<V>> followedFlight : followedFlights.entrySet()) {
+            V value = await(followedFlight.getValue());
+            if (value != null) {
+                values.put(followedFlight.getKey(), value);
+            }
+        }
+        return values;
+    }
+
+    private V await(CompletableFuture<V> flight) throws IOException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a concurrent lookup");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Concurrent lookup has failed", cause);
+        }
+    }
+
+    interface Lookup<V> {
+
+        V lookup() throws IOException;
+    }
+
+    interface BatchLookup<K, V> {
+
+        Map<K, V> lookupAll(List<K> keys) throws IOException;
+    }
+}
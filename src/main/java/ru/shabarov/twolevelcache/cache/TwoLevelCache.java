@@ -1,137 +1,1546 @@
-package ru.shabarov.twolevelcache.cache;
-
-import com.blogspot.mydailyjava.guava.cache.overflow.FileSystemPersistingCache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import org.apache.commons.lang3.ArrayUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import ru.shabarov.twolevelcache.exception.NotEvictedException;
-
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Comparator;
-import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-public class TwoLevelCache<K, V> extends FileSystemPersistingCache<K, V> {
-
-    private static final Logger LOGGER = LoggerFactory.getLogger(TwoLevelCache.class);
-
-    private Optional<Long> maximumSize;
-    private Optional<Long> evictionAfterAccessTime;
-    private Optional<Long> evictionAfterWriteTime;
-    private final ExecutorService timeExpirationExecutorService = Executors.newSingleThreadExecutor();
-
-    protected TwoLevelCache(CacheBuilder<Object, Object> cacheBuilder, RemovalListener<K, V> removalListener,
-                            Long maximumSize, Long evictionAfterAccessTime, Long evictionAfterWriteTime) {
-        super(cacheBuilder, removalListener);
-        checkCoherentAndAssign(maximumSize, evictionAfterAccessTime, evictionAfterWriteTime);
-    }
-
-    protected TwoLevelCache(CacheBuilder<Object, Object> cacheBuilder, File persistenceDirectory,
-                            RemovalListener<K, V> removalListener, Long maximumSize, Long evictionAfterAccessTime,
-                            Long evictionAfterWriteTime) {
-        super(cacheBuilder, persistenceDirectory, removalListener);
-        checkCoherentAndAssign(maximumSize, evictionAfterAccessTime, evictionAfterWriteTime);
-    }
-
-    @Override
-    protected void persistValue(K key, V value) throws IOException {
-        V foundedValue = findPersistedAndExpire(key);
-        if (foundedValue == null || !foundedValue.equals(value)) {
-            if (maximumSize.isPresent() && sizeOfPersisted() >= maximumSize.get()) {
-                File persistenceRootDirectory = getPersistenceRootDirectory();
-                Optional<Path> expiredCacheFile = getExpiredCacheFile(persistenceRootDirectory);
-                if (expiredCacheFile.isPresent()) {
-                    File file = expiredCacheFile.get().toFile();
-                    boolean isDeleted = file.delete();
-                    if (!isDeleted) {
-                        throw new NotEvictedException("Couldn't evict cache file=" + file.getAbsolutePath() +
-                                " when maximum size is reached");
-                    }
-                }
-            }
-            super.persistValue(key, value);
-        } else {
-            LOGGER.trace(String.format("Object with key=%s and value=%s is already persisted", key, value));
-        }
-    }
-
-    @Override
-    protected V findPersisted(K key) throws IOException {
-        V foundedValue = super.findPersisted(key);
-        if (evictionAfterAccessTime.isPresent()) {
-            this.timeExpirationExecutorService.submit(new TimeExpiryWorker(evictionAfterAccessTime.get()));
-        }
-        return foundedValue;
-    }
-
-    protected V findPersistedAndExpire(K key) throws IOException {
-        V foundedValue = super.findPersisted(key);
-        if (evictionAfterWriteTime.isPresent()) {
-            this.timeExpirationExecutorService.submit(new TimeExpiryWorker(evictionAfterWriteTime.get()));
-        }
-        return foundedValue;
-    }
-
-    private Optional<Path> getExpiredCacheFile(File persistenceRootDir) throws IOException {
-        Path dir = Paths.get(persistenceRootDir.getAbsolutePath());
-        return Files.list(dir)
-                .filter(f -> !Files.isDirectory(f))
-                .min(Comparator.comparingLong(f -> f.toFile().lastModified()));
-    }
-
-    private void checkCoherentAndAssign(Long maximumSize, Long evictionAfterAccessTime, Long evictionAfterWriteTime) {
-        this.maximumSize = Optional.ofNullable(maximumSize);
-        this.evictionAfterAccessTime = Optional.ofNullable(evictionAfterAccessTime);
-        this.evictionAfterWriteTime = Optional.ofNullable(evictionAfterWriteTime);
-        if ((this.maximumSize.isPresent() && this.evictionAfterAccessTime.isPresent()) ||
-                (this.maximumSize.isPresent() && this.evictionAfterWriteTime.isPresent())) {
-            throw new IllegalStateException("Simultaneous max size and time eviction strategy is not allowed");
-        }
-    }
-
-    private class TimeExpiryWorker implements Runnable {
-
-        private final long expirationTime;
-
-        public TimeExpiryWorker(long expirationTime) {
-            this.expirationTime = expirationTime;
-        }
-
-        @Override
-        public void run() {
-            try {
-                LOGGER.trace("Time expiration worker has been started");
-                Path rootDirectory = Paths.get(getPersistenceRootDirectory().getAbsolutePath());
-                long actualTime = System.currentTimeMillis();
-                Object[] expiredFiles = Files.list(rootDirectory)
-                        .filter(f -> !Files.isDirectory(f))
-                        .filter(f -> actualTime - f.toFile().lastModified() > expirationTime).toArray();
-                if (ArrayUtils.isNotEmpty(expiredFiles)) {
-                    for (Object object : expiredFiles) {
-                        File file = ((Path) object).toFile();
-                        boolean isDeleted = file.delete();
-                        if (!isDeleted) {
-                            LOGGER.trace("Couldn't evict cache file=" + file.getAbsolutePath() +
-                                    " when time expiration is reached");
-                        } else {
-                            LOGGER.trace("Cache file=" + file.getAbsolutePath() +
-                                    " has been evicted");
-                        }
-                    }
-                } else {
-                    LOGGER.trace("No time expired file caches found");
-                }
-                LOGGER.trace("Time expiration worker has been finished");
-            } catch (Exception e) {
-                LOGGER.error("Time expiration worker has interrupted by internal error", e);
-            }
-        }
-    }
-}
+package ru.shabarov.twolevelcache.cache;
+
+import com.blogspot.mydailyjava.guava.cache.overflow.FileSystemPersistingCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shabarov.twolevelcache.serialization.BufferOutput;
+import ru.shabarov.twolevelcache.serialization.Serializer;
+import ru.shabarov.twolevelcache.serialization.ValueCompressor;
+import ru.shabarov.twolevelcache.stats.StatsRecorder;
+import ru.shabarov.twolevelcache.stats.TwoLevelCacheStats;
+import ru.shabarov.twolevelcache.stats.TwoLevelCacheStatsBean;
+import ru.shabarov.twolevelcache.storage.FilePerKeyStorage;
+import ru.shabarov.twolevelcache.storage.OffHeapStore;
+import ru.shabarov.twolevelcache.storage.PersistenceStorage;
+import ru.shabarov.twolevelcache.storage.SegmentLogStorage;
+import ru.shabarov.twolevelcache.storage.StoredEntry;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads, writes, evictions and expirations of a persisted entry are serialized by a lock striped by the entry
+ * identifier, so entries of different stripes are persisted in parallel. Batches take the locks of all their
+ * entries in the stripe order, and no lock is acquired while other ones are held, apart from the batch itself.
+ * <p>
+ * The persisted level is split into shards, one per persistence directory. Keys are routed to the shards by
+ * consistent hashing of their persisted identifiers, every shard has its own storage, index, share of the limits
+ * and background workers.
+ * <p>
+ * {@link #asMap()} is a view of the entries held in memory. Its traversal neither reads nor promotes persisted
+ * entries, so iterating over the cache doesn't churn either level.
+ */
+public class TwoLevelCache<K, V> extends FileSystemPersistingCache<K, V> implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TwoLevelCache.class);
+    private static final int PERSISTED_LOCK_STRIPES = 64;
+    private static final long SPILL_WAIT_SECONDS = 1;
+
+    private Optional<Long> maximumSize;
+    private Optional<Long> maximumBytes;
+    private Optional<Long> evictionAfterAccessTime;
+    private Optional<Long> evictionAfterWriteTime;
+    private final Serializer<? super K, V> serializer;
+    private final ValueCompressor valueCompressor;
+    private final Optional<Weigher<? super K, ? super V>> diskWeigher;
+    private final StatsRecorder statsRecorder;
+    private final Optional<ObjectName> statsObjectName;
+    private final Optional<OffHeapStore> offHeapStore;
+    private final boolean recoverOnStart;
+    private final List<Shard> shards;
+    private final Optional<ScheduledExecutorService> timeExpirationExecutorService;
+    private final BackpressurePolicy backpressurePolicy;
+    private final PromotionPolicy promotionPolicy;
+    private final Optional<ExecutorService> writeBehindExecutorService;
+    private volatile boolean closed;
+    private final RemovalListener<K, V> removalListener;
+    private final ThreadLocal<Map<K, V>> spillBatch = new ThreadLocal<>();
+    private final ConcurrentMap<K, V> spillingValues = new ConcurrentHashMap<>();
+    private final SingleFlight<K, V> persistedLookups = new SingleFlight<>();
+    private final Striped<Lock> persistedLocks = Striped.lock(PERSISTED_LOCK_STRIPES);
+
+    protected TwoLevelCache(TwoLevelCacheBuilder<? super K, ? super V> builder) {
+        super(builder.getUnderlyingCacheBuilder(), builder.getPersistenceDirectory(),
+                TwoLevelCacheBuilder.<K, V>castRemovalListener(builder.getRemovalListener()));
+        this.removalListener = TwoLevelCacheBuilder.castRemovalListener(builder.getRemovalListener());
+        this.diskWeigher = Optional.ofNullable(TwoLevelCacheBuilder.<K, V>castWeigher(builder.getDiskWeigher()));
+        List<File> directories = new ArrayList<>(builder.getPersistenceDirectories());
+        if (directories.isEmpty()) {
+            directories.add(getPersistenceRootDirectory());
+        }
+        checkCoherentAndAssign(builder.getMaximumSize(), builder.getMaximumBytes(),
+                builder.getEvictionAfterAccessTime(), builder.getEvictionAfterWriteTime(), directories.size());
+        this.serializer = TwoLevelCacheBuilder.<K, V>castSerializer(builder.getSerializer());
+        this.valueCompressor = new ValueCompressor(builder.getCompression(), builder.getCompressionThreshold());
+        this.statsRecorder = builder.isRecordStats() ? StatsRecorder.enabled() : StatsRecorder.disabled();
+        this.offHeapStore = builder.getOffHeapMaximumBytes() > 0 ?
+                Optional.of(new OffHeapStore(builder.getOffHeapMaximumBytes(), builder.getOffHeapSlabSize())) :
+                Optional.empty();
+        this.recoverOnStart = builder.isRecoverOnStart();
+        this.promotionPolicy = builder.getPromotionPolicy();
+        if (builder.getPreloadedEntries() > 0 && !recoverOnStart) {
+            throw new IllegalStateException("Preloading on start requires recovery on start");
+        }
+        List<Object> hotKeys = new ArrayList<>();
+        ImmutableList.Builder<Shard> shards = ImmutableList.builder();
+        for (int i = 0; i < directories.size(); i++) {
+            Optional<Checkpoint> checkpoint = readCheckpoint(directories.get(i));
+            checkpoint.ifPresent(c -> hotKeys.addAll(c.getHotKeys()));
+            shards.add(new Shard(builder, directories.get(i), i, directories.size(), checkpoint));
+        }
+        this.shards = shards.build();
+        this.timeExpirationExecutorService = scheduleTimeExpiry(builder.getExpirySweepInterval());
+        this.backpressurePolicy = builder.getBackpressurePolicy();
+        this.writeBehindExecutorService = builder.getWriteBehindCapacity() > 0 ?
+                Optional.of(startWriteBehind()) : Optional.empty();
+        if (!hotKeys.isEmpty()) {
+            preload(hotKeys, builder.getPreloadedEntries());
+        }
+        this.statsObjectName = Optional.ofNullable(builder.getMBeanName()).map(this::registerStats);
+    }
+
+    /**
+     * @return Statistics of both levels, which are recorded only if {@link TwoLevelCacheBuilder#recordStats()} is set.
+     */
+    public TwoLevelCacheStats twoLevelStats() {
+        long persistedWeight = 0;
+        for (Shard shard : shards) {
+            persistedWeight += shard.index.totalWeight();
+        }
+        return statsRecorder.snapshot(stats(), sizeOfPersisted(), persistedWeight);
+    }
+
+    /**
+     * @return Statistics of the memory level, including the hits of the lookups which peek memory.
+     */
+    @Override
+    public CacheStats stats() {
+        return super.stats().plus(statsRecorder.memoryHitStats());
+    }
+
+    /**
+     * Peeks a value of the key held in memory without recording a miss, so a lookup of both levels may follow.
+     * A hit is recorded.
+     */
+    V peekInMemory(Object key) {
+        V value = getUnderlyingCache().asMap().get(key);
+        if (value != null) {
+            statsRecorder.recordMemoryHits(1);
+        }
+        return value;
+    }
+
+    /**
+     * Peeks values of the keys held in memory without recording misses, so a lookup of both levels may follow.
+     * Hits are recorded.
+     */
+    ImmutableMap<K, V> peekAllInMemory(Iterable<? extends K> keys) {
+        Map<K, V> values = new LinkedHashMap<>();
+        for (K key : keys) {
+            V value = getUnderlyingCache().asMap().get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        statsRecorder.recordMemoryHits(values.size());
+        return ImmutableMap.copyOf(values);
+    }
+
+    /**
+     * @return A value of the key held in memory, the persisted level isn't looked up.
+     */
+    V getIfPresentInMemory(Object key) {
+        return getUnderlyingCache().getIfPresent(key);
+    }
+
+    /**
+     * Serves a persisted value from the persisted level, it's moved to memory if the promotion policy admits
+     * the hit.
+     */
+    @Override
+    public V getIfPresent(Object key) {
+        return promotionPolicy.isAlways() ? super.getIfPresent(key) : findPresent(key);
+    }
+
+    @Override
+    public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException {
+        if (promotionPolicy.isAlways()) {
+            return super.get(key, valueLoader);
+        }
+        V value = findPresent(key);
+        return value != null ? value : getUnderlyingCache().get(key, valueLoader);
+    }
+
+    @Override
+    protected boolean isPersistenceRelevant(RemovalCause cause) {
+        return super.isPersistenceRelevant(cause) && cause != RemovalCause.EXPIRED;
+    }
+
+    @Override
+    protected void persistValue(K key, V value) throws IOException {
+        long startTime = statsRecorder.startTime();
+        try {
+            stageOrWrite(key, value);
+        } finally {
+            statsRecorder.recordPersist(startTime);
+        }
+    }
+
+    /**
+     * Concurrent lookups of the same key are coalesced, so the value is read once.
+     */
+    @Override
+    protected V findPersisted(K key) throws IOException {
+        long startTime = statsRecorder.startTime();
+        V value = persistedLookups.execute(key, () -> findStagedOrStored(key));
+        statsRecorder.recordFind(startTime, value != null);
+        return value;
+    }
+
+    /**
+     * Stages or persists an entry evicted from memory. An entry dropped as the write-behind buffer is full
+     * loses its older persisted copy as well, which would be served otherwise.
+     */
+    private void stageOrWrite(K key, V value) throws IOException {
+        if (!isPersist(key)) {
+            return;
+        }
+        Optional<WriteBehindBuffer<K, V>> writeBehindBuffer = shardFor(persistedIdFor(key)).writeBehindBuffer;
+        if (writeBehindBuffer.isPresent()) {
+            boolean isStaged;
+            try {
+                isStaged = writeBehindBuffer.get().offer(key, value, backpressurePolicy == BackpressurePolicy.BLOCK);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                isStaged = false;
+            }
+            if (isStaged) {
+                return;
+            }
+            if (backpressurePolicy != BackpressurePolicy.WRITE_INLINE) {
+                deletePersistedIfExistent(key);
+                LOGGER.trace(String.format("Object with key=%s is not persisted as write-behind buffer is full", key));
+                return;
+            }
+        }
+        spillingValues.put(key, value);
+        Map<K, V> batch = spillBatch.get();
+        if (batch != null) {
+            batch.put(key, value);
+            return;
+        }
+        try {
+            writeStored(key, value);
+        } finally {
+            completeSpill(key, value);
+        }
+    }
+
+    /**
+     * Stops serving a value from the spilling ones after it is persisted. If the value has been deleted while
+     * it was spilling, the persisted copy is deleted as well.
+     */
+    private void completeSpill(K key, V value) {
+        if (!spillingValues.remove(key, value) && !spillingValues.containsKey(key)) {
+            deleteStored(key);
+        }
+    }
+
+    private V findStagedOrStored(K key) throws IOException {
+        if (!isPersist(key)) {
+            return null;
+        }
+        String persistedId = persistedIdFor(key);
+        Shard shard = shardFor(persistedId);
+        boolean mightBeStored = shard.index.mightContain(persistedId);
+        if (mightBeStored) {
+            shard.index.recordAccess(persistedId);
+        } else {
+            shard.index.recordMiss(persistedId);
+        }
+        if (shard.writeBehindBuffer.isPresent()) {
+            V stagedValue = shard.writeBehindBuffer.get().get(key);
+            if (stagedValue != null) {
+                return stagedValue;
+            }
+        }
+        V spillingValue = spillingValues.get(key);
+        if (spillingValue != null) {
+            return spillingValue;
+        }
+        if (!mightBeStored) {
+            statsRecorder.recordFilterNegative();
+            return null;
+        }
+        return readStored(key, shard, persistedId);
+    }
+
+    /**
+     * Looks up memory first, then the persisted level, and moves a persisted value to memory if its hit
+     * promotes it.
+     */
+    private V findPresent(Object key) {
+        V value = getUnderlyingCache().getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        @SuppressWarnings("unchecked")
+        K castKey = (K) key;
+        try {
+            value = findPersisted(castKey);
+        } catch (IOException e) {
+            LOGGER.warn("Persisted value of key=" + key + " could not be retrieved", e);
+            return null;
+        }
+        if (value != null && isPromoted(castKey)) {
+            deletePersistedIfExistent(castKey);
+            getUnderlyingCache().put(castKey, value);
+        }
+        return value;
+    }
+
+    /**
+     * @return Whether a persisted entry of the key, which has just been hit, is moved to memory.
+     * Entries which aren't indexed yet, e.g. the staged ones, are never promoted by hits.
+     */
+    private boolean isPromoted(K key) {
+        if (promotionPolicy.isNever()) {
+            return false;
+        }
+        String persistedId = persistedIdFor(key);
+        return shardFor(persistedId).index.recordHit(persistedId, System.currentTimeMillis(),
+                promotionPolicy.getHits(), promotionPolicy.getWindow());
+    }
+
+    /**
+     * Takes memory hits first, then reads all the missed keys from the storage at once. Unless every hit is
+     * promoted, a bulk lookup is taken for a scan: its persisted values are served from the persisted level
+     * and their hits aren't counted, otherwise they are moved to memory. Keys moved to memory by a concurrent
+     * lookup in the meantime are taken from memory once more.
+     */
+    @Override
+    public ImmutableMap<K, V> getAllPresent(Iterable<?> keys) {
+        Map<K, V> present = new HashMap<>(getUnderlyingCache().getAllPresent(keys));
+        Set<K> missedKeys = new LinkedHashSet<>();
+        for (Object key : keys) {
+            @SuppressWarnings("unchecked")
+            K castKey = (K) key;
+            if (!present.containsKey(castKey)) {
+                missedKeys.add(castKey);
+            }
+        }
+        if (!missedKeys.isEmpty()) {
+            try {
+                Map<K, V> persisted = persistedLookups.executeAll(missedKeys,
+                        promotionPolicy.isAlways() ? this::promoteAllPersisted : this::findAllPersisted);
+                statsRecorder.recordFinds(persisted.size(), missedKeys.size() - persisted.size());
+                present.putAll(persisted);
+            } catch (IOException e) {
+                LOGGER.warn("Could not load persisted values of keys " + missedKeys, e);
+            }
+            missedKeys.removeAll(present.keySet());
+            if (!missedKeys.isEmpty()) {
+                present.putAll(peekAllInMemory(missedKeys));
+            }
+        }
+        ImmutableMap.Builder<K, V> result = ImmutableMap.builder();
+        Set<K> added = new HashSet<>();
+        for (Object key : keys) {
+            @SuppressWarnings("unchecked")
+            K castKey = (K) key;
+            V value = present.get(castKey);
+            if (value != null && added.add(castKey)) {
+                result.put(castKey, value);
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * Persists the entries evicted from memory by the given ones as a single batch.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        inSpillBatch(() -> getUnderlyingCache().putAll(m));
+    }
+
+    /**
+     * Deletes the persisted value of the key, which is read for the removal listener without being counted
+     * as a lookup.
+     */
+    @Override
+    public void invalidate(Object key) {
+        getUnderlyingCache().invalidate(key);
+        @SuppressWarnings("unchecked")
+        K castKey = (K) key;
+        try {
+            if (removalListener != null) {
+                V persisted = findAllPersisted(Collections.singleton(castKey)).get(castKey);
+                if (persisted != null) {
+                    removalListener.onRemoval(RemovalNotification.create(castKey, persisted, RemovalCause.EXPLICIT));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not notify removal of persisted value of key=" + key, e);
+        }
+        deletePersistedIfExistent(castKey);
+    }
+
+    /**
+     * Deletes all the persisted values of the given keys at once.
+     */
+    @Override
+    public void invalidateAll(Iterable<?> keys) {
+        getUnderlyingCache().invalidateAll(keys);
+        Set<K> castKeys = new LinkedHashSet<>();
+        for (Object key : keys) {
+            @SuppressWarnings("unchecked")
+            K castKey = (K) key;
+            castKeys.add(castKey);
+        }
+        try {
+            if (removalListener != null) {
+                for (Map.Entry<K, V> persisted : findAllPersisted(castKeys).entrySet()) {
+                    removalListener.onRemoval(RemovalNotification.create(persisted.getKey(), persisted.getValue(),
+                            RemovalCause.EXPLICIT));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not notify removal of persisted values of keys " + castKeys, e);
+        }
+        deleteAllPersisted(castKeys);
+    }
+
+    @Override
+    protected void deletePersistedIfExistent(K key) {
+        shardFor(persistedIdFor(key)).writeBehindBuffer.ifPresent(buffer -> buffer.remove(key));
+        spillingValues.remove(key);
+        deleteStored(key);
+    }
+
+    @Override
+    protected void deleteAllPersisted() {
+        List<Lock> locks = new ArrayList<>(persistedLocks.size());
+        for (int i = 0; i < persistedLocks.size(); i++) {
+            locks.add(persistedLocks.getAt(i));
+        }
+        lockAll(locks);
+        try {
+            spillingValues.clear();
+            offHeapStore.ifPresent(OffHeapStore::clear);
+            for (Shard shard : shards) {
+                shard.writeBehindBuffer.ifPresent(WriteBehindBuffer::clear);
+                try {
+                    shard.storage.deleteAll();
+                } catch (IOException e) {
+                    LOGGER.warn("Couldn't delete all cache entries of persistence directory=" +
+                            shard.directory.getAbsolutePath(), e);
+                }
+                shard.index.clear();
+            }
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    @Override
+    protected int sizeOfPersisted() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.index.size() + shard.writeBehindBuffer.map(WriteBehindBuffer::size).orElse(0);
+        }
+        return size;
+    }
+
+    /**
+     * Persists staged and off-heap entries, stops the background workers and closes the storage.
+     * Persisted entries are left in place. When recovery on start is enabled, entries held in memory
+     * are persisted too and a checkpoint is written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (writeBehindExecutorService.isPresent()) {
+            writeBehindExecutorService.get().shutdown();
+            try {
+                writeBehindExecutorService.get().awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        timeExpirationExecutorService.ifPresent(ScheduledExecutorService::shutdownNow);
+        Map<K, V> memoryEntries = new LinkedHashMap<>();
+        if (recoverOnStart) {
+            for (Map.Entry<K, V> entry : getUnderlyingCache().asMap().entrySet()) {
+                if (isPersist(entry.getKey())) {
+                    memoryEntries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            try {
+                writeAllStored(memoryEntries);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't persist memory cache entries", e);
+            }
+        }
+        if (offHeapStore.isPresent()) {
+            Map<String, ByteBuffer> offHeapValues = offHeapStore.get().clear();
+            for (Map.Entry<Shard, List<String>> shardIds : groupByShard(offHeapValues.keySet()).entrySet()) {
+                Map<String, ByteBuffer> shardValues = new LinkedHashMap<>();
+                shardIds.getValue().forEach(id -> shardValues.put(id, offHeapValues.get(id)));
+                try {
+                    shardIds.getKey().storage.writeAll(shardValues);
+                } catch (IOException e) {
+                    LOGGER.warn("Couldn't persist off-heap cache entries", e);
+                }
+            }
+        }
+        for (Shard shard : shards) {
+            if (recoverOnStart) {
+                List<Object> hotKeys = new ArrayList<>();
+                for (K key : memoryEntries.keySet()) {
+                    if (shardFor(persistedIdFor(key)) == shard) {
+                        hotKeys.add(key);
+                    }
+                }
+                try {
+                    new Checkpoint(shard.index.entries(), hotKeys).write(shard.directory);
+                } catch (IOException e) {
+                    LOGGER.warn("Couldn't write checkpoint of persistence directory=" +
+                            shard.directory.getAbsolutePath(), e);
+                }
+            }
+            shard.storage.close();
+        }
+        if (statsObjectName.isPresent()) {
+            try {
+                TwoLevelCacheStatsBean.unregister(statsObjectName.get());
+            } catch (JMException e) {
+                LOGGER.warn("Couldn't unregister statistics bean=" + statsObjectName.get(), e);
+            }
+        }
+    }
+
+    private void inSpillBatch(Runnable action) {
+        if (spillBatch.get() != null) {
+            action.run();
+            return;
+        }
+        Map<K, V> batch = new LinkedHashMap<>();
+        spillBatch.set(batch);
+        try {
+            action.run();
+        } finally {
+            spillBatch.remove();
+            if (!batch.isEmpty()) {
+                try {
+                    writeAllStored(batch);
+                } catch (Exception e) {
+                    LOGGER.warn("Could not persist evicted values of keys " + batch.keySet(), e);
+                } finally {
+                    batch.forEach(this::completeSpill);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the persisted values of the given keys to memory before concurrent lookups of the keys are released.
+     */
+    private Map<K, V> promoteAllPersisted(Collection<K> keys) throws IOException {
+        for (K key : keys) {
+            String persistedId = persistedIdFor(key);
+            shardFor(persistedId).index.recordAccess(persistedId);
+        }
+        Map<K, V> persisted = findAllPersisted(keys);
+        deleteAllPersisted(persisted.keySet());
+        inSpillBatch(() -> getUnderlyingCache().putAll(persisted));
+        return persisted;
+    }
+
+    private Map<K, V> findAllPersisted(Collection<K> keys) throws IOException {
+        Map<K, V> persisted = new HashMap<>();
+        Map<String, K> storedKeys = new HashMap<>();
+        Optional<Long> expirationTime = getExpirationTime();
+        long expiredBefore = System.currentTimeMillis() - expirationTime.orElse(0L);
+        for (K key : keys) {
+            if (!isPersist(key)) {
+                continue;
+            }
+            String persistedId = persistedIdFor(key);
+            Shard shard = shardFor(persistedId);
+            V stagedValue = shard.writeBehindBuffer.map(buffer -> buffer.get(key)).orElse(spillingValues.get(key));
+            if (stagedValue != null) {
+                persisted.put(key, stagedValue);
+                continue;
+            }
+            if (!isFiltered(shard, persistedId) ||
+                    expirationTime.isPresent() && expire(persistedId, expiredBefore)) {
+                continue;
+            }
+            if (shard.index.contains(persistedId)) {
+                storedKeys.put(persistedId, key);
+            } else {
+                statsRecorder.recordFilterFalsePositive();
+            }
+        }
+        List<Lock> locks = lockAll(persistedLocks.bulkGet(storedKeys.keySet()));
+        try {
+            Map<String, ByteBuffer> storedValues = new HashMap<>();
+            if (offHeapStore.isPresent()) {
+                for (String persistedId : storedKeys.keySet()) {
+                    ByteBuffer offHeapValue = offHeapStore.get().get(persistedId);
+                    if (offHeapValue != null) {
+                        storedValues.put(persistedId, offHeapValue);
+                    }
+                }
+            }
+            List<String> fileIds = new ArrayList<>(storedKeys.keySet());
+            fileIds.removeAll(storedValues.keySet());
+            for (Map.Entry<Shard, List<String>> shardIds : groupByShard(fileIds).entrySet()) {
+                storedValues.putAll(shardIds.getKey().storage.readAll(shardIds.getValue()));
+            }
+            for (Map.Entry<String, ByteBuffer> stored : storedValues.entrySet()) {
+                K key = storedKeys.get(stored.getKey());
+                persisted.put(key, serializer.deserialize(key, valueCompressor.decode(stored.getValue())));
+            }
+        } finally {
+            unlockAll(locks);
+        }
+        return persisted;
+    }
+
+    private void deleteAllPersisted(Collection<K> keys) {
+        List<String> persistedIds = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            String persistedId = persistedIdFor(key);
+            shardFor(persistedId).writeBehindBuffer.ifPresent(buffer -> buffer.remove(key));
+            spillingValues.remove(key);
+            persistedIds.add(persistedId);
+        }
+        List<Lock> locks = lockAll(persistedLocks.bulkGet(persistedIds));
+        try {
+            offHeapStore.ifPresent(store -> persistedIds.forEach(store::delete));
+            for (Map.Entry<Shard, List<String>> shardIds : groupByShard(persistedIds).entrySet()) {
+                try {
+                    shardIds.getKey().storage.delete(shardIds.getValue());
+                } catch (IOException e) {
+                    LOGGER.warn("Couldn't delete cache entries=" + shardIds.getValue(), e);
+                }
+                shardIds.getValue().forEach(shardIds.getKey().index::remove);
+            }
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    /**
+     * Persists a batch of entries, split by their shards.
+     */
+    private void writeAllStored(Map<K, V> entries) throws IOException {
+        Map<Shard, Map<K, V>> shardEntries = new LinkedHashMap<>();
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            shardEntries.computeIfAbsent(shardFor(persistedIdFor(entry.getKey())), shard -> new LinkedHashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Shard, Map<K, V>> entriesOfShard : shardEntries.entrySet()) {
+            writeAllStored(entriesOfShard.getKey(), entriesOfShard.getValue());
+        }
+    }
+
+    /**
+     * Persists a batch of entries of a shard. Values are serialized one after another into the thread buffer,
+     * compressed into another one if the compression is enabled, and passed to the storage as slices.
+     * The eldest entries of the batch are dropped if the batch alone exceeds the limits of the shard, their older
+     * persisted versions are deleted, as they would be served otherwise.
+     */
+    private void writeAllStored(Shard shard, Map<K, V> entries) throws IOException {
+        List<K> keys = new ArrayList<>(entries.keySet());
+        if (shard.maximumSize.isPresent() && keys.size() > shard.maximumSize.get()) {
+            List<K> droppedKeys = keys.subList(0, keys.size() - shard.maximumSize.get().intValue());
+            droppedKeys.forEach(this::deleteStored);
+            keys = keys.subList(keys.size() - shard.maximumSize.get().intValue(), keys.size());
+        }
+        BufferOutput output = BufferOutput.ofCurrentThread();
+        int[] ends = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            serializer.serialize(keys.get(i), entries.get(keys.get(i)), output);
+            ends[i] = output.size();
+        }
+        ByteBuffer serialized = output.asByteBuffer();
+        BufferOutput encodingOutput = valueCompressor.outputOfCurrentThread();
+        Map<String, ByteBuffer> values = new LinkedHashMap<>();
+        Map<String, Long> weights = new LinkedHashMap<>();
+        long totalWeight = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            K key = keys.get(i);
+            ByteBuffer value = serialized.duplicate();
+            value.position(i == 0 ? 0 : ends[i - 1]);
+            value.limit(ends[i]);
+            ByteBuffer stored = encode(value.slice(), encodingOutput);
+            long weight = weigh(key, entries.get(key), stored);
+            if (isOverweight(shard, weight)) {
+                skipOverweight(key, weight);
+                continue;
+            }
+            String persistedId = persistedIdFor(key);
+            shard.index.recordAccess(persistedId);
+            values.put(persistedId, stored);
+            weights.put(persistedId, weight);
+            totalWeight += weight;
+        }
+        Iterator<Map.Entry<String, Long>> eldestWeights = weights.entrySet().iterator();
+        while (isOverweight(shard, totalWeight) && eldestWeights.hasNext()) {
+            Map.Entry<String, Long> eldestWeight = eldestWeights.next();
+            totalWeight -= eldestWeight.getValue();
+            values.remove(eldestWeight.getKey());
+            eldestWeights.remove();
+            deleteStoredEntry(eldestWeight.getKey());
+        }
+        for (String rejectedId : evictFor(shard, weights)) {
+            values.remove(rejectedId);
+            weights.remove(rejectedId);
+        }
+        writeIndexed(shard, values, weights);
+    }
+
+    private void writeStored(K key, V value) throws IOException {
+        String persistedId = persistedIdFor(key);
+        Shard shard = shardFor(persistedId);
+        shard.index.recordAccess(persistedId);
+        V foundedValue = shard.index.contains(persistedId) ? findStored(key) : null;
+        if (foundedValue == null || !foundedValue.equals(value)) {
+            BufferOutput output = BufferOutput.ofCurrentThread();
+            serializer.serialize(key, value, output);
+            ByteBuffer stored = encode(output.asByteBuffer(), valueCompressor.outputOfCurrentThread());
+            long weight = weigh(key, value, stored);
+            if (isOverweight(shard, weight)) {
+                skipOverweight(key, weight);
+                return;
+            }
+            Map<String, Long> weights = Collections.singletonMap(persistedId, weight);
+            if (!evictFor(shard, weights).isEmpty()) {
+                return;
+            }
+            writeIndexed(shard, Collections.singletonMap(persistedId, stored), weights);
+        } else {
+            LOGGER.trace(String.format("Object with key=%s and value=%s is already persisted", key, value));
+        }
+    }
+
+    /**
+     * @return A moment in milliseconds the value of the key has been persisted at, if it is persisted.
+     */
+    Optional<Long> persistedTime(K key) {
+        if (!isPersist(key)) {
+            return Optional.empty();
+        }
+        String persistedId = persistedIdFor(key);
+        return Optional.ofNullable(shardFor(persistedId).index.persistedTime(persistedId));
+    }
+
+    /**
+     * Rewrites the persisted value of the key on the persisted level, unless it has been changed or deleted since
+     * the given old value was evicted from memory. A value waiting in the write-behind buffer is replaced there,
+     * a value being spilled by another thread is waited for a while. As any other write, the rewritten entry
+     * becomes the youngest persisted one with a new persisted time, and its promotion hits are forgotten.
+     *
+     * @return Whether the value has been rewritten.
+     */
+    boolean replacePersisted(K key, V oldValue, V newValue) throws IOException {
+        if (!isPersist(key)) {
+            return false;
+        }
+        String persistedId = persistedIdFor(key);
+        Shard shard = shardFor(persistedId);
+        if (shard.writeBehindBuffer.isPresent()) {
+            if (shard.writeBehindBuffer.get().replace(key, oldValue, newValue)) {
+                return true;
+            }
+            if (shard.writeBehindBuffer.get().get(key) != null) {
+                return false;
+            }
+        }
+        awaitSpill(key, oldValue);
+        Long version = shard.index.version(persistedId);
+        if (version == null || !oldValue.equals(findStored(key))) {
+            return false;
+        }
+        BufferOutput output = BufferOutput.ofCurrentThread();
+        serializer.serialize(key, newValue, output);
+        ByteBuffer stored = encode(output.asByteBuffer(), valueCompressor.outputOfCurrentThread());
+        long weight = weigh(key, newValue, stored);
+        if (isOverweight(shard, weight)) {
+            skipOverweight(key, weight);
+            return false;
+        }
+        Map<String, MovedValue> movedValues;
+        Lock lock = lock(persistedId);
+        try {
+            if (!version.equals(shard.index.version(persistedId))) {
+                LOGGER.trace("Cache entry=" + persistedId + " has been persisted again and is not replaced");
+                return false;
+            }
+            shard.index.put(persistedId, System.currentTimeMillis(), weight);
+            try {
+                movedValues = writeSerialized(shard, Collections.singletonMap(persistedId, stored),
+                        Collections.singleton(persistedId));
+            } catch (IOException | RuntimeException e) {
+                deleteStoredEntry(persistedId);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+        writeMoved(movedValues);
+        evictFor(shard, Collections.emptyMap());
+        return true;
+    }
+
+    /**
+     * Waits a bounded time for another thread to persist the given value of the key it is spilling.
+     */
+    private void awaitSpill(K key, V value) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SPILL_WAIT_SECONDS);
+        while (value.equals(spillingValues.get(key)) && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * @return A weight of the entry given by the disk weigher, or the size of its stored value.
+     */
+    private long weigh(K key, V value, ByteBuffer stored) {
+        return diskWeigher.isPresent() ? diskWeigher.get().weigh(key, value) : stored.remaining();
+    }
+
+    private ByteBuffer encode(ByteBuffer serialized, BufferOutput output) {
+        ByteBuffer stored = valueCompressor.encode(serialized, output);
+        if (valueCompressor.isCompressed(stored)) {
+            statsRecorder.recordCompression(serialized.remaining(), stored.remaining());
+        }
+        return stored;
+    }
+
+    private boolean isOverweight(Shard shard, long weight) {
+        return shard.maximumBytes.isPresent() && weight > shard.maximumBytes.get();
+    }
+
+    /**
+     * Deletes an outdated persisted value of the key, which is never going to fit the persisted level.
+     */
+    private void skipOverweight(K key, long weight) {
+        deleteStored(key);
+        LOGGER.trace("Cache entry with key=" + key + " of weight=" + weight + " exceeds persistence maximum bytes" +
+                " and is not persisted");
+    }
+
+    /**
+     * Indexes and writes the entries of a shard under their locks, the index goes first, so the values moved out of
+     * the off-heap store are tagged with their current versions. Then persists the moved values and evicts
+     * the entries which concurrent writers have persisted beyond the limits.
+     */
+    private void writeIndexed(Shard shard, Map<String, ByteBuffer> values, Map<String, Long> weights)
+            throws IOException {
+        Map<String, MovedValue> movedValues;
+        long persistedTime = System.currentTimeMillis();
+        List<Lock> locks = lockAll(persistedLocks.bulkGet(values.keySet()));
+        try {
+            Set<String> replacedIds = new HashSet<>();
+            for (Map.Entry<String, Long> weight : weights.entrySet()) {
+                if (shard.index.contains(weight.getKey())) {
+                    replacedIds.add(weight.getKey());
+                }
+                shard.index.put(weight.getKey(), persistedTime, weight.getValue());
+            }
+            try {
+                movedValues = writeSerialized(shard, values, replacedIds);
+            } catch (IOException | RuntimeException e) {
+                values.keySet().forEach(this::deleteStoredEntry);
+                throw e;
+            }
+        } finally {
+            unlockAll(locks);
+        }
+        writeMoved(movedValues);
+        evictFor(shard, Collections.emptyMap());
+    }
+
+    /**
+     * Evicts persisted entries of a shard chosen by the eviction policy until the given incoming ones fit both
+     * the maximum size and the maximum bytes of the shard. Incoming entries replace their persisted versions. An incoming
+     * entry which isn't admitted by the policy at the cost of a victim is rejected, its persisted version is deleted.
+     * Must be called without any persisted lock held.
+     *
+     * @param incomingWeights Weights of the incoming entries by their identifiers.
+     * @return Identifiers of the rejected incoming entries.
+     */
+    private Set<String> evictFor(Shard shard, Map<String, Long> incomingWeights) throws IOException {
+        Set<String> rejectedIds = new HashSet<>();
+        if (!shard.maximumSize.isPresent() && !shard.maximumBytes.isPresent()) {
+            return rejectedIds;
+        }
+        Map<String, Long> admittedWeights = new HashMap<>();
+        Iterator<Map.Entry<String, Long>> incomingIterator = incomingWeights.entrySet().iterator();
+        do {
+            Map.Entry<String, Long> incomingWeight = incomingIterator.hasNext() ? incomingIterator.next() : null;
+            if (incomingWeight != null) {
+                admittedWeights.put(incomingWeight.getKey(), incomingWeight.getValue());
+            }
+            while (shard.index.exceeds(admittedWeights, shard.maximumSize.orElse(Long.MAX_VALUE),
+                    shard.maximumBytes.orElse(Long.MAX_VALUE))) {
+                Optional<String> victimId = shard.index.victim();
+                if (!victimId.isPresent()) {
+                    break;
+                }
+                if (incomingWeight != null && !admittedWeights.containsKey(victimId.get()) &&
+                        !shard.index.admits(incomingWeight.getKey(), victimId.get())) {
+                    String incomingId = incomingWeight.getKey();
+                    admittedWeights.remove(incomingId);
+                    rejectedIds.add(incomingId);
+                    evict(incomingId);
+                    LOGGER.trace("Cache entry=" + incomingId + " is not admitted instead of entry=" + victimId.get());
+                    break;
+                }
+                evict(victimId.get());
+            }
+        } while (incomingIterator.hasNext());
+        return rejectedIds;
+    }
+
+    /**
+     * Evicts the entry unless it is persisted again between choosing and locking it.
+     */
+    private void evict(String persistedId) throws IOException {
+        PersistenceIndex persistenceIndex = shardFor(persistedId).index;
+        Long version = persistenceIndex.version(persistedId);
+        if (version == null) {
+            return;
+        }
+        Lock lock = lock(persistedId);
+        try {
+            if (!version.equals(persistenceIndex.version(persistedId))) {
+                LOGGER.trace("Cache entry=" + persistedId + " has been persisted again and is not evicted");
+                return;
+            }
+            if (!deleteStored(persistedId)) {
+                LOGGER.trace("Couldn't delete cache entry=" + persistedId + " when maximum size is reached");
+            }
+            persistenceIndex.remove(persistedId);
+            statsRecorder.recordEviction();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the entry if it is persisted before the given moment.
+     *
+     * @return Whether the entry has been expired.
+     */
+    private boolean expire(String persistedId, long expiredBefore) throws IOException {
+        PersistenceIndex persistenceIndex = shardFor(persistedId).index;
+        Lock lock = lock(persistedId);
+        try {
+            if (!persistenceIndex.isPersistedBefore(persistedId, expiredBefore)) {
+                return false;
+            }
+            if (!deleteStored(persistedId)) {
+                LOGGER.trace("Couldn't delete cache entry=" + persistedId + " when time expiration is reached");
+            }
+            persistenceIndex.remove(persistedId);
+            statsRecorder.recordExpiration();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the value only if it is indexed, a definite miss of the filter of the index is told without locking.
+     */
+    private V findStored(K key) throws IOException {
+        String persistedId = persistedIdFor(key);
+        Shard shard = shardFor(persistedId);
+        return isFiltered(shard, persistedId) ? readStored(key, shard, persistedId) : null;
+    }
+
+    /**
+     * Reads the value of an entry which has passed the filter of the index, so may be indexed.
+     */
+    private V readStored(K key, Shard shard, String persistedId) throws IOException {
+        Lock lock = lock(persistedId);
+        try {
+            if (!shard.index.contains(persistedId)) {
+                statsRecorder.recordFilterFalsePositive();
+                return null;
+            }
+            Optional<Long> expirationTime = getExpirationTime();
+            if (expirationTime.isPresent() && expire(persistedId, System.currentTimeMillis() - expirationTime.get())) {
+                return null;
+            }
+            ByteBuffer persisted = offHeapStore.map(store -> store.get(persistedId)).orElse(null);
+            if (persisted == null) {
+                persisted = shard.storage.read(persistedId);
+            }
+            if (persisted == null) {
+                return null;
+            }
+            return serializer.deserialize(key, valueCompressor.decode(persisted));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps stored values off-heap when possible and persists the ones which don't fit along with the off-heap
+     * overflow of the given entries. Must be called under the locks of the given entries of a shard.
+     * A replaced value kept off-heap has its older version deleted from the storage, which would be indexed again
+     * on start otherwise.
+     *
+     * @param replacedIds Identifiers of the given entries which have been persisted before.
+     * @return The off-heap overflow of the other entries, which is persisted under their own locks.
+     */
+    private Map<String, MovedValue> writeSerialized(Shard shard, Map<String, ByteBuffer> values,
+                                                    Set<String> replacedIds) throws IOException {
+        if (statsRecorder.isEnabled()) {
+            long bytes = 0;
+            for (ByteBuffer value : values.values()) {
+                bytes += value.remaining();
+            }
+            statsRecorder.recordWrites(values.size(), bytes);
+        }
+        if (!offHeapStore.isPresent()) {
+            shard.storage.writeAll(values);
+            return Collections.emptyMap();
+        }
+        Map<String, ByteBuffer> overflow = new LinkedHashMap<>();
+        Map<String, MovedValue> movedValues = new LinkedHashMap<>();
+        for (Map.Entry<String, ByteBuffer> value : values.entrySet()) {
+            if (offHeapStore.get().fits(value.getValue())) {
+                overflow.remove(value.getKey());
+                for (Map.Entry<String, ByteBuffer> evicted :
+                        offHeapStore.get().put(value.getKey(), value.getValue()).entrySet()) {
+                    Long version = shardFor(evicted.getKey()).index.version(evicted.getKey());
+                    if (values.containsKey(evicted.getKey())) {
+                        overflow.put(evicted.getKey(), evicted.getValue());
+                    } else if (version != null) {
+                        movedValues.put(evicted.getKey(), new MovedValue(evicted.getValue(), version));
+                    }
+                }
+            } else {
+                offHeapStore.get().delete(value.getKey());
+                overflow.put(value.getKey(), value.getValue());
+            }
+        }
+        List<String> staleIds = new ArrayList<>();
+        for (String replacedId : replacedIds) {
+            if (!overflow.containsKey(replacedId)) {
+                staleIds.add(replacedId);
+            }
+        }
+        if (!staleIds.isEmpty()) {
+            shard.storage.delete(staleIds);
+        }
+        if (!overflow.isEmpty()) {
+            shard.storage.writeAll(overflow);
+        }
+        return movedValues;
+    }
+
+    /**
+     * Persists values moved out of the off-heap store as one batch per shard, unless their entries have changed since.
+     */
+    private void writeMoved(Map<String, MovedValue> movedValues) throws IOException {
+        if (movedValues.isEmpty()) {
+            return;
+        }
+        List<Lock> locks = lockAll(persistedLocks.bulkGet(movedValues.keySet()));
+        try {
+            Map<Shard, Map<String, ByteBuffer>> shardValues = new LinkedHashMap<>();
+            for (Map.Entry<String, MovedValue> movedValue : movedValues.entrySet()) {
+                String persistedId = movedValue.getKey();
+                Shard shard = shardFor(persistedId);
+                if (movedValue.getValue().version.equals(shard.index.version(persistedId)) &&
+                        !offHeapStore.get().contains(persistedId)) {
+                    shardValues.computeIfAbsent(shard, s -> new LinkedHashMap<>())
+                            .put(persistedId, movedValue.getValue().value);
+                } else {
+                    LOGGER.trace("Cache entry=" + persistedId + " has changed after leaving off-heap store");
+                }
+            }
+            for (Map.Entry<Shard, Map<String, ByteBuffer>> values : shardValues.entrySet()) {
+                values.getKey().storage.writeAll(values.getValue());
+            }
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    private void deleteStored(K key) {
+        deleteStoredEntry(persistedIdFor(key));
+    }
+
+    private void deleteStoredEntry(String persistedId) {
+        Lock lock = lock(persistedId);
+        try {
+            try {
+                deleteStored(persistedId);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't delete cache entry=" + persistedId, e);
+            }
+            shardFor(persistedId).index.remove(persistedId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean deleteStored(String persistedId) throws IOException {
+        offHeapStore.ifPresent(store -> store.delete(persistedId));
+        return shardFor(persistedId).storage.delete(persistedId);
+    }
+
+    /**
+     * @return Whether the entry passes the filter of persisted entries, a definite miss is recorded.
+     */
+    private boolean isFiltered(Shard shard, String persistedId) {
+        if (shard.index.mightContain(persistedId)) {
+            return true;
+        }
+        statsRecorder.recordFilterNegative();
+        return false;
+    }
+
+    private Shard shardFor(String persistedId) {
+        return shards.size() == 1 ? shards.get(0) : shards.get(shardIndexFor(persistedId, shards.size()));
+    }
+
+    /**
+     * Routes entries by the jump consistent hash, so a shard appended to the shards takes over its share of
+     * the entries from the others and the rest of the entries stay in place.
+     */
+    private static int shardIndexFor(String persistedId, int shards) {
+        return Hashing.consistentHash(Hashing.murmur3_128().hashString(persistedId, StandardCharsets.UTF_8), shards);
+    }
+
+    private Map<Shard, List<String>> groupByShard(Collection<String> persistedIds) {
+        Map<Shard, List<String>> shardIds = new LinkedHashMap<>();
+        for (String persistedId : persistedIds) {
+            shardIds.computeIfAbsent(shardFor(persistedId), shard -> new ArrayList<>()).add(persistedId);
+        }
+        return shardIds;
+    }
+
+    private Lock lock(String persistedId) {
+        Lock lock = persistedLocks.get(persistedId);
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * @param locks Locks in the stripe order, possibly repeated.
+     * @return The same locks, all of which are held.
+     */
+    private static List<Lock> lockAll(Iterable<Lock> locks) {
+        List<Lock> lockList = Lists.newArrayList(locks);
+        lockList.forEach(Lock::lock);
+        return lockList;
+    }
+
+    private static void unlockAll(List<Lock> locks) {
+        Lists.reverse(locks).forEach(Lock::unlock);
+    }
+
+    private String persistedIdFor(K key) {
+        return String.join(File.separator, directoryFor(key));
+    }
+
+    private Optional<Long> getExpirationTime() {
+        if (evictionAfterAccessTime.isPresent() && evictionAfterWriteTime.isPresent()) {
+            return Optional.of(Math.min(evictionAfterAccessTime.get(), evictionAfterWriteTime.get()));
+        }
+        return evictionAfterAccessTime.isPresent() ? evictionAfterAccessTime : evictionAfterWriteTime;
+    }
+
+    private PersistenceStorage openStorage(TwoLevelCacheBuilder<? super K, ? super V> builder, File directory) {
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IllegalStateException("Couldn't create persistence directory=" + directory.getAbsolutePath());
+        }
+        try {
+            switch (builder.getStorageType()) {
+                case SEGMENT_LOG:
+                    return new SegmentLogStorage(directory, builder.getSegmentSize(),
+                            builder.getCompactionThreshold(), builder.getMaximumMappedBytes());
+                case FILE_PER_KEY:
+                default:
+                    if (builder.getMaximumMappedBytes() > 0) {
+                        throw new IllegalStateException("Memory mapped reads are supported by the segment log storage only");
+                    }
+                    return new FilePerKeyStorage(directory);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't open persistence directory=" + directory.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Reads the checkpoint if recovery on start is enabled and deletes it anyway, as it's outdated as soon
+     * as the cache changes persisted entries.
+     */
+    private Optional<Checkpoint> readCheckpoint(File directory) {
+        Optional<Checkpoint> checkpoint = recoverOnStart ? Checkpoint.read(directory) : Optional.empty();
+        try {
+            Checkpoint.delete(directory);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't delete checkpoint of persistence directory=" +
+                    directory.getAbsolutePath(), e);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Indexes the entries stored in a shard, the ones routed to other shards are discarded as they are unreachable.
+     */
+    private PersistenceIndex buildPersistenceIndex(PersistenceStorage storage, File directory, int shardIndex,
+                                                   int shards, Optional<Checkpoint> checkpoint,
+                                                   DiskEvictionPolicy policy, Optional<Long> maximumSize) {
+        try {
+            List<StoredEntry> storedEntries = new ArrayList<>(storage.entries());
+            if (shards > 1) {
+                Iterator<StoredEntry> iterator = storedEntries.iterator();
+                while (iterator.hasNext()) {
+                    StoredEntry entry = iterator.next();
+                    if (shardIndexFor(entry.getId(), shards) != shardIndex) {
+                        storage.delete(entry.getId());
+                        iterator.remove();
+                        LOGGER.trace("Cache entry=" + entry.getId() + " of another shard has been discarded on start");
+                    }
+                }
+            }
+            return PersistenceIndex.rebuild(
+                    recoverOnStart ? recoverEntries(storage, storedEntries, checkpoint) : storedEntries,
+                    policy, maximumSize.orElse(0L));
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't index persistence directory=" + directory.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Takes the stored entries in the checkpointed order, verifies the ones missing in the checkpoint in parallel
+     * and discards the corrupt and expired ones.
+     */
+    private List<StoredEntry> recoverEntries(PersistenceStorage storage, List<StoredEntry> storedEntries,
+                                             Optional<Checkpoint> checkpoint) throws IOException {
+        Map<String, StoredEntry> uncheckpointed = new LinkedHashMap<>();
+        for (StoredEntry storedEntry : storedEntries) {
+            uncheckpointed.put(storedEntry.getId(), storedEntry);
+        }
+        List<StoredEntry> recovered = new ArrayList<>(storedEntries.size());
+        if (checkpoint.isPresent()) {
+            for (StoredEntry checkpointed : checkpoint.get().getEntries()) {
+                if (uncheckpointed.remove(checkpointed.getId()) != null) {
+                    recovered.add(checkpointed);
+                }
+            }
+        }
+        recovered.addAll(verifyInParallel(storage, new ArrayList<>(uncheckpointed.values())));
+        Optional<Long> expirationTime = getExpirationTime();
+        if (expirationTime.isPresent()) {
+            long expiredBefore = System.currentTimeMillis() - expirationTime.get();
+            Iterator<StoredEntry> iterator = recovered.iterator();
+            while (iterator.hasNext()) {
+                StoredEntry entry = iterator.next();
+                if (entry.getPersistedTime() < expiredBefore) {
+                    storage.delete(entry.getId());
+                    iterator.remove();
+                    LOGGER.trace("Expired cache entry=" + entry.getId() + " has been discarded on start");
+                }
+            }
+        }
+        return recovered;
+    }
+
+    private List<StoredEntry> verifyInParallel(PersistenceStorage storage, List<StoredEntry> entries)
+            throws IOException {
+        if (entries.isEmpty()) {
+            return entries;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("two-level-cache-recovery-%d").setDaemon(true).build());
+        try {
+            List<Future<List<StoredEntry>>> verifications = new ArrayList<>();
+            for (List<StoredEntry> part : Lists.partition(entries, (entries.size() + threads - 1) / threads)) {
+                verifications.add(executorService.submit(() -> verify(storage, part)));
+            }
+            List<StoredEntry> verified = new ArrayList<>(entries.size());
+            for (Future<List<StoredEntry>> verification : verifications) {
+                verified.addAll(verification.get());
+            }
+            return verified;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Verification of persisted entries has been interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't verify persisted entries", e.getCause());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private List<StoredEntry> verify(PersistenceStorage storage, List<StoredEntry> entries) throws IOException {
+        List<StoredEntry> verified = new ArrayList<>(entries.size());
+        for (StoredEntry entry : entries) {
+            boolean isValid;
+            try {
+                ByteBuffer value = storage.read(entry.getId());
+                isValid = value != null && serializer.deserialize(null, valueCompressor.decode(value)) != null;
+            } catch (Exception e) {
+                isValid = false;
+            }
+            if (isValid) {
+                verified.add(entry);
+            } else {
+                storage.delete(entry.getId());
+                LOGGER.trace("Corrupt cache entry=" + entry.getId() + " has been discarded on start");
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Moves the entries of the given keys to memory, while there are fewer than the given number moved.
+     */
+    private void preload(List<Object> keys, int maximumEntries) {
+        int preloaded = 0;
+        for (Object key : keys) {
+            if (preloaded >= maximumEntries) {
+                break;
+            }
+            @SuppressWarnings("unchecked")
+            K castKey = (K) key;
+            try {
+                V value = isPersist(castKey) ? findStored(castKey) : null;
+                if (value != null) {
+                    deleteStored(castKey);
+                    getUnderlyingCache().put(castKey, value);
+                    preloaded++;
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Couldn't preload cache entry with key=" + key, e);
+            }
+        }
+        LOGGER.trace(preloaded + " cache entries have been preloaded on start");
+    }
+
+    private Optional<ScheduledExecutorService> scheduleTimeExpiry(long sweepInterval) {
+        Optional<Long> expirationTime = getExpirationTime();
+        if (!expirationTime.isPresent()) {
+            return Optional.empty();
+        }
+        ScheduledExecutorService executorService = Executors.newScheduledThreadPool(shards.size(),
+                new ThreadFactoryBuilder().setNameFormat("two-level-cache-expiry-%d").setDaemon(true).build());
+        for (Shard shard : shards) {
+            executorService.scheduleWithFixedDelay(new TimeExpiryWorker(shard.index, expirationTime.get()),
+                    sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        }
+        return Optional.of(executorService);
+    }
+
+    private ObjectName registerStats(String cacheName) {
+        try {
+            return TwoLevelCacheStatsBean.register(cacheName, this::twoLevelStats);
+        } catch (JMException e) {
+            throw new IllegalStateException("Couldn't register statistics bean of cache=" + cacheName, e);
+        }
+    }
+
+    private ExecutorService startWriteBehind() {
+        ExecutorService executorService = Executors.newFixedThreadPool(shards.size(),
+                new ThreadFactoryBuilder().setNameFormat("two-level-cache-write-behind-%d").setDaemon(true).build());
+        for (Shard shard : shards) {
+            shard.writeBehindBuffer.ifPresent(buffer -> executorService.execute(new WriteBehindWorker(buffer)));
+        }
+        return executorService;
+    }
+
+    private void checkCoherentAndAssign(Long maximumSize, Long maximumBytes, Long evictionAfterAccessTime,
+                                        Long evictionAfterWriteTime, int shards) {
+        this.maximumSize = Optional.ofNullable(maximumSize);
+        this.maximumBytes = Optional.ofNullable(maximumBytes);
+        this.evictionAfterAccessTime = Optional.ofNullable(evictionAfterAccessTime);
+        this.evictionAfterWriteTime = Optional.ofNullable(evictionAfterWriteTime);
+        if (this.diskWeigher.isPresent() && !this.maximumBytes.isPresent()) {
+            throw new IllegalStateException("Disk weigher requires persistence maximum bytes");
+        }
+        if (this.maximumSize.orElse(Long.MAX_VALUE) < shards || this.maximumBytes.orElse(Long.MAX_VALUE) < shards) {
+            throw new IllegalStateException("Persistence maximum size and bytes must not be less than the number " +
+                    "of persistence directories");
+        }
+    }
+
+    /**
+     * @return A share of the limit, the remainder of the division goes to the first shards.
+     */
+    private static Optional<Long> shareOf(Optional<Long> limit, int shardIndex, int shards) {
+        return limit.map(l -> l / shards + (shardIndex < l % shards ? 1 : 0));
+    }
+
+    private static final class MovedValue {
+
+        private final ByteBuffer value;
+        private final Long version;
+
+        private MovedValue(ByteBuffer value, Long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Part of the persisted level kept in one of the persistence directories.
+     */
+    private class Shard {
+
+        private final File directory;
+        private final PersistenceStorage storage;
+        private final PersistenceIndex index;
+        private final Optional<Long> maximumSize;
+        private final Optional<Long> maximumBytes;
+        private final Optional<WriteBehindBuffer<K, V>> writeBehindBuffer;
+
+        private Shard(TwoLevelCacheBuilder<? super K, ? super V> builder, File directory, int shardIndex, int shards,
+                      Optional<Checkpoint> checkpoint) {
+            this.directory = directory;
+            this.maximumSize = shareOf(TwoLevelCache.this.maximumSize, shardIndex, shards);
+            this.maximumBytes = shareOf(TwoLevelCache.this.maximumBytes, shardIndex, shards);
+            this.storage = openStorage(builder, directory);
+            this.index = buildPersistenceIndex(storage, directory, shardIndex, shards, checkpoint,
+                    builder.getDiskEvictionPolicy(), maximumSize);
+            this.writeBehindBuffer = builder.getWriteBehindCapacity() > 0 ?
+                    Optional.of(new WriteBehindBuffer<>((builder.getWriteBehindCapacity() + shards - 1) / shards)) :
+                    Optional.empty();
+        }
+    }
+
+    private class TimeExpiryWorker implements Runnable {
+
+        private final PersistenceIndex persistenceIndex;
+        private final long expirationTime;
+
+        public TimeExpiryWorker(PersistenceIndex persistenceIndex, long expirationTime) {
+            this.persistenceIndex = persistenceIndex;
+            this.expirationTime = expirationTime;
+        }
+
+        @Override
+        public void run() {
+            try {
+                LOGGER.trace("Time expiration worker has been started");
+                long expiredBefore = System.currentTimeMillis() - expirationTime;
+                List<String> expiredIds = persistenceIndex.persistedBefore(expiredBefore);
+                if (!expiredIds.isEmpty()) {
+                    for (String expiredId : expiredIds) {
+                        if (expire(expiredId, expiredBefore)) {
+                            LOGGER.trace("Cache entry=" + expiredId +
+                                    " has been evicted");
+                        }
+                    }
+                } else {
+                    LOGGER.trace("No time expired file caches found");
+                }
+                LOGGER.trace("Time expiration worker has been finished");
+            } catch (Exception e) {
+                LOGGER.error("Time expiration worker has interrupted by internal error", e);
+            }
+        }
+    }
+
+    private class WriteBehindWorker implements Runnable {
+
+        private static final int BATCH_SIZE = 64;
+        private static final long DRAIN_TIMEOUT = 100;
+
+        private final WriteBehindBuffer<K, V> buffer;
+
+        public WriteBehindWorker(WriteBehindBuffer<K, V> buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            LOGGER.trace("Write-behind worker has been started");
+            try {
+                while (!closed) {
+                    persist(buffer.drain(BATCH_SIZE, DRAIN_TIMEOUT, TimeUnit.MILLISECONDS));
+                }
+                Map<K, V> batch;
+                while (!(batch = buffer.drain(BATCH_SIZE, 0, TimeUnit.MILLISECONDS)).isEmpty()) {
+                    persist(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            LOGGER.trace("Write-behind worker has been finished");
+        }
+
+        /**
+         * Persists the drained entries as one batch. An entry removed from the buffer meanwhile is deleted
+         * from the persisted level afterwards, an entry staged again meanwhile stays staged and is written once more
+         * by a later batch.
+         */
+        private void persist(Map<K, V> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                writeAllStored(batch);
+            } catch (Exception e) {
+                LOGGER.warn("Could not persist values of keys " + batch.keySet(), e);
+            }
+            for (Map.Entry<K, V> entry : batch.entrySet()) {
+                if (!buffer.complete(entry.getKey(), entry.getValue())) {
+                    deleteStored(entry.getKey());
+                }
+            }
+        }
+    }
+}
@@ -2,23 +2,62 @@ package ru.shabarov.twolevelcache.cache;
 
 import com.google.common.base.Ticker;
 import com.google.common.cache.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import ru.shabarov.twolevelcache.serialization.Compression;
+import ru.shabarov.twolevelcache.serialization.JavaSerializer;
+import ru.shabarov.twolevelcache.serialization.Serializer;
+import ru.shabarov.twolevelcache.storage.StorageType;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 public final class TwoLevelCacheBuilder<K, V> {
 
+    private static final long DEFAULT_EXPIRY_SWEEP_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    private static final long DEFAULT_OFF_HEAP_SLAB_SIZE = 4L * 1024 * 1024;
+    private static final int DEFAULT_REFRESH_QUEUE_CAPACITY = 1024;
+
     private final CacheBuilder<Object, Object> underlyingCacheBuilder;
 
     private Long maximumSize;
+    private Long maximumBytes;
+    private Weigher<? super K, ? super V> diskWeigher;
+    private DiskEvictionPolicy diskEvictionPolicy = DiskEvictionPolicy.FIFO;
     private Long evictionAfterWriteTime;
     private Long evictionAfterAccessTime;
+    private Long refreshAfterWriteTime;
+    private int refreshThreads = 1;
+    private int refreshQueueCapacity = DEFAULT_REFRESH_QUEUE_CAPACITY;
+    private long expirySweepInterval = DEFAULT_EXPIRY_SWEEP_INTERVAL;
 
     private RemovalListener<? super K, ? super V> removalListener;
-    private File persistenceDirectory;
+    private Serializer<? super K, ? extends V> serializer;
+    private Compression compression = Compression.NONE;
+    private int compressionThreshold;
+    private List<File> persistenceDirectories;
+    private StorageType storageType = StorageType.FILE_PER_KEY;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long maximumMappedBytes;
+    private int writeBehindCapacity;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    private PromotionPolicy promotionPolicy = PromotionPolicy.always();
+    private long offHeapMaximumBytes;
+    private boolean recoverOnStart;
+    private int preloadedEntries;
+    private boolean recordStats;
+    private String mBeanName;
 
     public static TwoLevelCacheBuilder<Object, Object> newBuilder() {
         return new TwoLevelCacheBuilder<>();
@@ -45,9 +84,47 @@ public final class TwoLevelCacheBuilder<K, V> {
         return this;
     }
 
+    /**
+     * Refreshes values ahead of their expiration: a value older than the given duration since it was written keeps
+     * being served while the cache loader reloads it in background, then the reloaded value replaces it in memory,
+     * or its persisted copy on the persisted level. Requires {@link #build(CacheLoader)}.
+     *
+     * @param duration A time after which a value is reloaded on its next read.
+     * @param unit     A time unit of the duration.
+     * @return This builder.
+     */
     public TwoLevelCacheBuilder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
-        underlyingCacheBuilder.refreshAfterWrite(duration, unit);
-        this.evictionAfterWriteTime = unit.toMillis(duration);
+        checkArgument(duration > 0, "refresh after write must be positive: %s", duration);
+        this.refreshAfterWriteTime = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Sets a pool reloading stale values, one thread with 1024 queued reloads by default. A reload which doesn't
+     * fit the queue is skipped and retried on the next read of the stale value.
+     *
+     * @param threads       A number of threads reloading values.
+     * @param queueCapacity A maximum number of reloads waiting for a thread.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> refreshExecutor(int threads, int queueCapacity) {
+        checkArgument(threads > 0, "refresh threads must be positive: %s", threads);
+        checkArgument(queueCapacity > 0, "refresh queue capacity must be positive: %s", queueCapacity);
+        this.refreshThreads = threads;
+        this.refreshQueueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Sets how often persisted files are checked for time expiration. Only files which are actually due are deleted.
+     *
+     * @param duration A period between two subsequent checks.
+     * @param unit     A time unit of the period.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> expirySweepInterval(long duration, TimeUnit unit) {
+        checkArgument(duration > 0, "expiry sweep interval must be positive: %s", duration);
+        this.expirySweepInterval = unit.toMillis(duration);
         return this;
     }
 
@@ -66,16 +143,76 @@ public final class TwoLevelCacheBuilder<K, V> {
         return this;
     }
 
+    /**
+     * Caps the persisted level by the total weight of its entries, the size in bytes of the stored values
+     * unless {@link #diskWeigher(Weigher)} is set. The eldest entries are evicted until the level fits the budget,
+     * an entry heavier than the whole budget isn't persisted.
+     *
+     * @param bytes A maximum total weight of the persisted entries.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> persistenceMaximumBytes(long bytes) {
+        checkArgument(bytes > 0, "persistence maximum bytes must be positive: %s", bytes);
+        this.maximumBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Sets a weigher of persisted entries, which is used instead of the size of the serialized values.
+     * Entries found on disk on start are weighed by their stored size. Requires {@link #persistenceMaximumBytes(long)}.
+     *
+     * @param weigher A weigher of persisted entries.
+     * @return This builder.
+     */
+    public <K1 extends K, V1 extends V> TwoLevelCacheBuilder<K1, V1> diskWeigher(Weigher<? super K1, ? super V1> weigher) {
+        checkState(this.diskWeigher == null);
+        @SuppressWarnings("unchecked")
+        TwoLevelCacheBuilder<K1, V1> castThis = (TwoLevelCacheBuilder<K1, V1>) this;
+        castThis.diskWeigher = checkNotNull(weigher);
+        return castThis;
+    }
+
+    /**
+     * Sets a policy choosing the persisted entries evicted when the persisted level is full,
+     * {@link DiskEvictionPolicy#FIFO} by default.
+     *
+     * @param diskEvictionPolicy An eviction policy of the persisted level.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> diskEvictionPolicy(DiskEvictionPolicy diskEvictionPolicy) {
+        this.diskEvictionPolicy = checkNotNull(diskEvictionPolicy);
+        return this;
+    }
+
     public TwoLevelCacheBuilder<K, V> maximumWeight(long weight) {
         underlyingCacheBuilder.maximumWeight(weight);
         return this;
     }
 
+    /**
+     * Enables recording of statistics of both levels, see {@link TwoLevelCache#twoLevelStats()}.
+     *
+     * @return This builder.
+     */
     public TwoLevelCacheBuilder<K, V> recordStats() {
         underlyingCacheBuilder.recordStats();
+        this.recordStats = true;
         return this;
     }
 
+    /**
+     * Registers statistics of the cache in the platform MBean server, enables their recording.
+     * The bean is unregistered when the cache is closed.
+     *
+     * @param cacheName A name of the cache, unique within the JVM.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> registerMBean(String cacheName) {
+        checkState(this.mBeanName == null);
+        this.mBeanName = checkNotNull(cacheName);
+        return recordStats();
+    }
+
     public TwoLevelCacheBuilder<K, V> softValues() {
         underlyingCacheBuilder.softValues();
         return this;
@@ -110,6 +247,35 @@ public final class TwoLevelCacheBuilder<K, V> {
         return castThis;
     }
 
+    /**
+     * Sets a serializer of persisted values, the Java serialization is used by default.
+     *
+     * @param serializer A serializer of values, see {@link ru.shabarov.twolevelcache.serialization} for built-in ones.
+     * @return This builder.
+     */
+    public <K1 extends K, V1 extends V> TwoLevelCacheBuilder<K1, V1> serializer(Serializer<? super K1, V1> serializer) {
+        checkState(this.serializer == null);
+        @SuppressWarnings("unchecked")
+        TwoLevelCacheBuilder<K1, V1> castThis = (TwoLevelCacheBuilder<K1, V1>) this;
+        castThis.serializer = checkNotNull(serializer);
+        return castThis;
+    }
+
+    /**
+     * Enables compression of persisted values. A persistence directory must be reused with the same compression.
+     *
+     * @param compression    A compression of values.
+     * @param thresholdBytes A minimum size in bytes of the serialized values which are compressed,
+     *                       smaller ones are persisted as they are.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> compression(Compression compression, int thresholdBytes) {
+        checkArgument(thresholdBytes >= 0, "compression threshold must not be negative: %s", thresholdBytes);
+        this.compression = checkNotNull(compression);
+        this.compressionThreshold = thresholdBytes;
+        return this;
+    }
+
     /**
      * Sets a location for persisting files. This directory <b>must not be used for other purposes</b>.
      *
@@ -117,25 +283,300 @@ public final class TwoLevelCacheBuilder<K, V> {
      * @return This builder.
      */
     public TwoLevelCacheBuilder<K, V> persistenceDirectory(File persistenceDirectory) {
-        checkState(this.persistenceDirectory == null);
-        this.persistenceDirectory = checkNotNull(persistenceDirectory);
+        checkState(this.persistenceDirectories == null);
+        this.persistenceDirectories = ImmutableList.of(checkNotNull(persistenceDirectory));
         return this;
     }
 
-    public <K1 extends K, V1 extends V> Cache<K1, V1> build() {
-        if (persistenceDirectory == null) {
-            return new TwoLevelCache<>(underlyingCacheBuilder,
-                    TwoLevelCacheBuilder.<K1, V1>castRemovalListener(removalListener),
-                    maximumSize, evictionAfterWriteTime, evictionAfterAccessTime);
-        } else {
-            return new TwoLevelCache<>(underlyingCacheBuilder, persistenceDirectory,
-                    TwoLevelCacheBuilder.<K1, V1>castRemovalListener(removalListener),
-                    maximumSize, evictionAfterWriteTime, evictionAfterAccessTime);
-        }
+    /**
+     * Sets several locations for persisting files, e.g. on separate devices. Keys are spread across the directories
+     * by consistent hashing, every directory gets an equal share of the persistence maximum size and bytes, and
+     * its own background workers. These directories <b>must not be used for other purposes</b>.
+     *
+     * @param persistenceDirectories Directories which are used by this file cache. Entries persisted before are
+     *                               kept as long as they are routed to the same directory, which is the case for
+     *                               most of them when a directory is appended to the list.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> persistenceDirectories(List<File> persistenceDirectories) {
+        checkState(this.persistenceDirectories == null);
+        checkArgument(!persistenceDirectories.isEmpty(), "persistence directories must not be empty");
+        checkArgument(new HashSet<>(persistenceDirectories).size() == persistenceDirectories.size(),
+                "persistence directories must be distinct: %s", persistenceDirectories);
+        this.persistenceDirectories = ImmutableList.copyOf(persistenceDirectories);
+        return this;
+    }
+
+    /**
+     * Sets a policy choosing the persisted hits which move their entries back to memory,
+     * {@link PromotionPolicy#always()} by default.
+     *
+     * @param promotionPolicy A promotion policy of the persisted level.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> promotionPolicy(PromotionPolicy promotionPolicy) {
+        this.promotionPolicy = checkNotNull(promotionPolicy);
+        return this;
+    }
+
+    /**
+     * Sets a layout of persisted entries, {@link StorageType#FILE_PER_KEY} by default.
+     *
+     * @param storageType A storage engine of the file cache.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> storage(StorageType storageType) {
+        this.storageType = checkNotNull(storageType);
+        return this;
+    }
+
+    /**
+     * Sets a size of a segment file for the {@link StorageType#SEGMENT_LOG} storage, 64 MB by default.
+     *
+     * @param bytes A size in bytes after which a new segment file is started.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> segmentSize(long bytes) {
+        checkArgument(bytes > 0, "segment size must be positive: %s", bytes);
+        this.segmentSize = bytes;
+        return this;
+    }
+
+    /**
+     * Sets a share of dead space in a segment file of the {@link StorageType#SEGMENT_LOG} storage
+     * after which the segment is compacted, 0.5 by default.
+     *
+     * @param threshold A share of dead space in (0, 1].
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> compactionThreshold(double threshold) {
+        checkArgument(threshold > 0 && threshold <= 1, "compaction threshold must be in (0, 1]: %s", threshold);
+        this.compactionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Enables reading of persisted values through memory mappings of sealed segment files.
+     * Supported by the {@link StorageType#SEGMENT_LOG} storage only.
+     *
+     * @param maximumMappedBytes A total size in bytes of segment files which may be mapped at once.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> memoryMappedReads(long maximumMappedBytes) {
+        checkArgument(maximumMappedBytes > 0, "maximum mapped bytes must be positive: %s", maximumMappedBytes);
+        this.maximumMappedBytes = maximumMappedBytes;
+        return this;
+    }
+
+    /**
+     * Enables write-behind persisting: entries evicted from memory are staged in a bounded buffer, which stays
+     * readable, and are persisted in batches by a background writer.
+     *
+     * @param capacity           A maximum number of staged entries.
+     * @param backpressurePolicy A behaviour when the buffer is full.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> writeBehind(int capacity, BackpressurePolicy backpressurePolicy) {
+        checkArgument(capacity > 0, "write-behind capacity must be positive: %s", capacity);
+        this.writeBehindCapacity = capacity;
+        this.backpressurePolicy = checkNotNull(backpressurePolicy);
+        return this;
+    }
+
+    /**
+     * Enables an off-heap tier between memory and the file cache: entries evicted from memory are kept
+     * serialized in direct buffers and only their overflow is persisted to files.
+     *
+     * @param maximumBytes A total size in bytes of the off-heap tier.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> offHeapMaximumBytes(long maximumBytes) {
+        checkArgument(maximumBytes > 0, "off-heap maximum bytes must be positive: %s", maximumBytes);
+        this.offHeapMaximumBytes = maximumBytes;
+        return this;
+    }
+
+    /**
+     * Enables warm restarts: the cache writes a checkpoint of the persisted entries along with the entries held
+     * in memory when it is closed. On start the checkpointed entries are taken as they are, the others are verified
+     * in parallel, and the corrupt and expired ones are discarded.
+     *
+     * @param recoverOnStart Whether the persisted entries are checkpointed and verified.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> recoverOnStart(boolean recoverOnStart) {
+        this.recoverOnStart = recoverOnStart;
+        return this;
+    }
+
+    /**
+     * Sets a number of entries which are moved to memory on a warm restart, taken from the ones held in memory
+     * when the cache was closed. Requires {@link #recoverOnStart(boolean)}.
+     *
+     * @param entries A maximum number of preloaded entries.
+     * @return This builder.
+     */
+    public TwoLevelCacheBuilder<K, V> preloadOnStart(int entries) {
+        checkArgument(entries > 0, "preloaded entries must be positive: %s", entries);
+        this.preloadedEntries = entries;
+        return this;
+    }
+
+    public <K1 extends K, V1 extends V> TwoLevelCache<K1, V1> build() {
+        checkState(refreshAfterWriteTime == null, "refreshAfterWrite requires a cache loader, see build(CacheLoader)");
+        return new TwoLevelCache<>(this);
+    }
+
+    /**
+     * Builds a cache which loads missing values by the given loader, and reloads stale ones with it
+     * if {@link #refreshAfterWrite(long, TimeUnit)} is set.
+     *
+     * @param loader A loader of values.
+     * @return The cache.
+     */
+    public <K1 extends K, V1 extends V> LoadingTwoLevelCache<K1, V1> build(CacheLoader<? super K1, V1> loader) {
+        return new LoadingTwoLevelCache<>(this, checkNotNull(loader));
+    }
+
+    /**
+     * Builds a non-blocking cache, whose operations touching the persisted level run on the given executor.
+     *
+     * @param executor An executor of the persisted level I/O.
+     * @return The cache.
+     */
+    public <K1 extends K, V1 extends V> AsyncTwoLevelCache<K1, V1> buildAsync(Executor executor) {
+        checkNotNull(executor);
+        return new AsyncTwoLevelCache<>(this.<K1, V1>build(), executor);
+    }
+
+    CacheBuilder<Object, Object> getUnderlyingCacheBuilder() {
+        return underlyingCacheBuilder;
+    }
+
+    Long getMaximumSize() {
+        return maximumSize;
+    }
+
+    Long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    Weigher<? super K, ? super V> getDiskWeigher() {
+        return diskWeigher;
+    }
+
+    DiskEvictionPolicy getDiskEvictionPolicy() {
+        return diskEvictionPolicy;
+    }
+
+    Long getEvictionAfterWriteTime() {
+        return evictionAfterWriteTime;
+    }
+
+    Long getEvictionAfterAccessTime() {
+        return evictionAfterAccessTime;
+    }
+
+    Long getRefreshAfterWriteTime() {
+        return refreshAfterWriteTime;
+    }
+
+    int getRefreshThreads() {
+        return refreshThreads;
+    }
+
+    int getRefreshQueueCapacity() {
+        return refreshQueueCapacity;
+    }
+
+    long getExpirySweepInterval() {
+        return expirySweepInterval;
+    }
+
+    RemovalListener<? super K, ? super V> getRemovalListener() {
+        return removalListener;
+    }
+
+    StorageType getStorageType() {
+        return storageType;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    long getMaximumMappedBytes() {
+        return maximumMappedBytes;
+    }
+
+    int getWriteBehindCapacity() {
+        return writeBehindCapacity;
+    }
+
+    BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    PromotionPolicy getPromotionPolicy() {
+        return promotionPolicy;
+    }
+
+    long getOffHeapMaximumBytes() {
+        return offHeapMaximumBytes;
+    }
+
+    boolean isRecoverOnStart() {
+        return recoverOnStart;
+    }
+
+    int getPreloadedEntries() {
+        return preloadedEntries;
+    }
+
+    boolean isRecordStats() {
+        return recordStats;
+    }
+
+    String getMBeanName() {
+        return mBeanName;
+    }
+
+    /**
+     * @return A slab size of the off-heap tier, so that the tier has at least 16 slabs.
+     */
+    int getOffHeapSlabSize() {
+        return (int) Math.max(1, Math.min(DEFAULT_OFF_HEAP_SLAB_SIZE, offHeapMaximumBytes / 16));
+    }
+
+    Serializer<?, ?> getSerializer() {
+        return serializer == null ? new JavaSerializer() : serializer;
+    }
+
+    Compression getCompression() {
+        return compression;
+    }
+
+    int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    File getPersistenceDirectory() {
+        return persistenceDirectories == null ? Files.createTempDir() : persistenceDirectories.get(0);
+    }
+
+    /**
+     * @return The persistence directories, or nothing if a temporary one is used.
+     */
+    List<File> getPersistenceDirectories() {
+        return persistenceDirectories == null ? Collections.emptyList() : persistenceDirectories;
     }
 
     @SuppressWarnings("unchecked")
-    private static <K, V> RemovalListener<K, V> castRemovalListener(RemovalListener<?, ?> removalListener) {
+    static <K, V> RemovalListener<K, V> castRemovalListener(RemovalListener<?, ?> removalListener) {
         if (removalListener == null) {
             return null;
         } else {
@@ -143,14 +584,44 @@ public final class TwoLevelCacheBuilder<K, V> {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    static <K, V> Weigher<? super K, ? super V> castWeigher(Weigher<?, ?> weigher) {
+        return (Weigher<? super K, ? super V>) weigher;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> Serializer<? super K, V> castSerializer(Serializer<?, ?> serializer) {
+        return (Serializer<? super K, V>) serializer;
+    }
+
     @Override
     public String toString() {
         return "TwoLevelCacheBuilder{" +
                 "underlyingCacheBuilder=" + underlyingCacheBuilder +
                 ", maximumSize=" + maximumSize +
+                ", maximumBytes=" + maximumBytes +
+                ", diskWeigher=" + diskWeigher +
+                ", diskEvictionPolicy=" + diskEvictionPolicy +
                 ", evictionAfterWriteTime=" + evictionAfterWriteTime +
+                ", evictionAfterAccessTime=" + evictionAfterAccessTime +
+                ", refreshAfterWriteTime=" + refreshAfterWriteTime +
+                ", refreshThreads=" + refreshThreads +
+                ", refreshQueueCapacity=" + refreshQueueCapacity +
+                ", expirySweepInterval=" + expirySweepInterval +
                 ", removalListener=" + removalListener +
-                ", persistenceDirectory=" + persistenceDirectory +
+                ", persistenceDirectories=" + persistenceDirectories +
+                ", storageType=" + storageType +
+                ", serializer=" + serializer +
+                ", compression=" + compression +
+                ", compressionThreshold=" + compressionThreshold +
+                ", writeBehindCapacity=" + writeBehindCapacity +
+                ", backpressurePolicy=" + backpressurePolicy +
+                ", promotionPolicy=" + promotionPolicy +
+                ", offHeapMaximumBytes=" + offHeapMaximumBytes +
+                ", recoverOnStart=" + recoverOnStart +
+                ", preloadedEntries=" + preloadedEntries +
+                ", recordStats=" + recordStats +
+                ", mBeanName=" + mBeanName +
                 '}';
     }
 }
@@ -0,0 +1,183 @@
+package ru.shabarov.twolevelcache.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded buffer of evicted entries which wait to be persisted by a background writer. Entries stay readable
+ * until the writer completes them, both while they are staged and while they are being written.
+ * An entry staged again while it is being written is kept in both states and written once more later,
+ * it is counted once against the capacity.
+ */
+class WriteBehindBuffer<K, V> {
+
+    private final int capacity;
+    private final LinkedHashMap<K, V> staged = new LinkedHashMap<>();
+    private final Map<K, V> inFlight = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int restagedCount;
+
+    WriteBehindBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param block Whether to wait for free space when the buffer is full.
+     * @return {@code false} if the buffer is full and the entry wasn't staged.
+     */
+    boolean offer(K key, V value, boolean block) throws InterruptedException {
+        lock.lock();
+        try {
+            if (staged.containsKey(key)) {
+                staged.put(key, value);
+                return true;
+            }
+            while (!inFlight.containsKey(key) && size() >= capacity) {
+                if (!block) {
+                    return false;
+                }
+                notFull.await();
+            }
+            if (inFlight.containsKey(key)) {
+                restagedCount++;
+            }
+            staged.put(key, value);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    V get(K key) {
+        lock.lock();
+        try {
+            V value = staged.get(key);
+            return value != null ? value : inFlight.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the latest value of an entry which is staged or being written, the new value is staged to be written.
+     *
+     * @return {@code false} if the entry isn't buffered or its latest value isn't the given old one.
+     */
+    boolean replace(K key, V oldValue, V newValue) {
+        lock.lock();
+        try {
+            V stagedValue = staged.get(key);
+            V latestValue = stagedValue != null ? stagedValue : inFlight.get(key);
+            if (latestValue == null || !latestValue.equals(oldValue)) {
+                return false;
+            }
+            if (stagedValue == null) {
+                restagedCount++;
+                notEmpty.signal();
+            }
+            staged.put(key, newValue);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(K key) {
+        lock.lock();
+        try {
+            boolean isStaged = staged.remove(key) != null;
+            boolean isInFlight = inFlight.remove(key) != null;
+            if (isStaged && isInFlight) {
+                restagedCount--;
+            }
+            if (isStaged || isInFlight) {
+                notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            staged.clear();
+            inFlight.clear();
+            restagedCount = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return A number of the entries, an entry both staged and being written is counted once.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return staged.size() + inFlight.size() - restagedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for staged entries and marks the eldest of them as being written.
+     *
+     * @return Up to the given number of entries, or an empty map if nothing was staged during the timeout.
+     */
+    Map<K, V> drain(int maximumBatchSize, long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (staged.isEmpty() && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            Map<K, V> batch = new LinkedHashMap<>();
+            Iterator<Map.Entry<K, V>> iterator = staged.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < maximumBatchSize) {
+                Map.Entry<K, V> entry = iterator.next();
+                if (inFlight.containsKey(entry.getKey())) {
+                    continue;
+                }
+                batch.put(entry.getKey(), entry.getValue());
+                inFlight.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases an entry which has been written. An entry staged again meanwhile stays staged.
+     *
+     * @return {@code false} if the entry was removed while it was being written, so the written copy is stale.
+     */
+    boolean complete(K key, V value) {
+        lock.lock();
+        try {
+            if (inFlight.get(key) != value) {
+                return false;
+            }
+            inFlight.remove(key);
+            if (staged.containsKey(key)) {
+                restagedCount--;
+            }
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable output buffer which is reused by the spilling thread, so serialization doesn't allocate once
+ * the buffer has grown to the size of typical values.
+ */
+public final class BufferOutput extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAXIMUM_RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final ThreadLocal<BufferOutput> THREAD_BUFFER = ThreadLocal.withInitial(BufferOutput::new);
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @return The empty buffer of the current thread. It must not be used after the thread requests it again.
+     */
+    public static BufferOutput ofCurrentThread() {
+        BufferOutput output = THREAD_BUFFER.get();
+        output.reset();
+        return output;
+    }
+
+    public void reset() {
+        if (bytes.length > MAXIMUM_RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A view of the written bytes, which is valid until the buffer is written to or reset.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, size);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(source, offset, bytes, size, length);
+        size += length;
+    }
+
+    public void write(ByteBuffer source) {
+        int length = source.remaining();
+        ensureCapacity(length);
+        source.duplicate().get(bytes, size, length);
+        size += length;
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        bytes[size++] = (byte) (value >>> 24);
+        bytes[size++] = (byte) (value >>> 16);
+        bytes[size++] = (byte) (value >>> 8);
+        bytes[size++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Writes an unsigned variable-length integer, seven bits per byte.
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            bytes[size++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        bytes[size++] = (byte) remaining;
+    }
+
+    /**
+     * Writes a string as UTF-8 without an intermediate byte array.
+     */
+    public void writeUtf8(CharSequence value) {
+        int length = value.length();
+        ensureCapacity(utf8Length(value));
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | (c >>> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[size++] = (byte) (0xF0 | (codePoint >>> 18));
+                bytes[size++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                bytes[size++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[size++] = (byte) '?';
+            } else {
+                bytes[size++] = (byte) (0xE0 | (c >>> 12));
+                bytes[size++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * @return A number of bytes of the string encoded as UTF-8, unpaired surrogates are replaced with one byte.
+     */
+    public static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                utf8Length++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        return utf8Length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+        }
+    }
+}
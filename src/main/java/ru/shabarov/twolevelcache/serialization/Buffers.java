@@ -0,0 +1,51 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reading counterparts of the {@link BufferOutput} writes.
+ */
+final class Buffers {
+
+    private static final int MAXIMUM_RETAINED_SCRATCH = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private Buffers() {
+    }
+
+    static long readVarLong(ByteBuffer input) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = input.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static int readVarInt(ByteBuffer input) {
+        return (int) readVarLong(input);
+    }
+
+    static String readUtf8(ByteBuffer input, int length) {
+        if (input.hasArray()) {
+            String value = new String(input.array(), input.arrayOffset() + input.position(), length,
+                    StandardCharsets.UTF_8);
+            input.position(input.position() + length);
+            return value;
+        }
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+            if (length <= MAXIMUM_RETAINED_SCRATCH) {
+                SCRATCH.set(scratch);
+            }
+        }
+        input.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
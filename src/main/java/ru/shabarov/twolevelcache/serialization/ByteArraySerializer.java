@@ -0,0 +1,21 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Persists byte array values as they are.
+ */
+public class ByteArraySerializer implements Serializer<Object, byte[]> {
+
+    @Override
+    public void serialize(Object key, byte[] value, BufferOutput output) {
+        output.write(value, 0, value.length);
+    }
+
+    @Override
+    public byte[] deserialize(Object key, ByteBuffer input) {
+        byte[] value = new byte[input.remaining()];
+        input.get(value);
+        return value;
+    }
+}
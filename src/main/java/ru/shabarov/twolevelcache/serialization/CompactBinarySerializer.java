@@ -0,0 +1,208 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import ru.shabarov.twolevelcache.storage.ByteBufferInputStream;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persists values in a compact tagged binary format. Strings, byte arrays, primitive wrappers and lists, sets
+ * and maps of them are written as a one byte tag followed by a variable-length size or value; any other
+ * {@link Serializable} value falls back to a length-prefixed Java serialization.
+ * <p>
+ * Only {@link ArrayList}, {@link HashSet}, {@link LinkedHashSet}, {@link HashMap} and {@link LinkedHashMap} are written
+ * compactly, they are read back as {@link ArrayList}, {@link LinkedHashSet} and {@link LinkedHashMap}, so a value
+ * may be cast to its original type. Other collections, such as sorted, enum or immutable ones, fall back to Java
+ * serialization, which keeps their types, and are rejected if they aren't {@link Serializable}.
+ */
+public class CompactBinarySerializer implements Serializer<Object, Object> {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BYTES = 2;
+    private static final byte TRUE = 3;
+    private static final byte FALSE = 4;
+    private static final byte INTEGER = 5;
+    private static final byte LONG = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte FLOAT = 8;
+    private static final byte SHORT = 9;
+    private static final byte BYTE = 10;
+    private static final byte CHARACTER = 11;
+    private static final byte LIST = 12;
+    private static final byte SET = 13;
+    private static final byte MAP = 14;
+    private static final byte SERIALIZABLE = 15;
+
+    @Override
+    public void serialize(Object key, Object value, BufferOutput output) throws IOException {
+        write(value, output);
+    }
+
+    @Override
+    public Object deserialize(Object key, ByteBuffer input) throws IOException {
+        return read(input);
+    }
+
+    private static void write(Object value, BufferOutput output) throws IOException {
+        if (value == null) {
+            output.write(NULL);
+        } else if (value instanceof String) {
+            String string = (String) value;
+            output.write(STRING);
+            output.writeVarLong(BufferOutput.utf8Length(string));
+            output.writeUtf8(string);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            output.write(BYTES);
+            output.writeVarLong(bytes.length);
+            output.write(bytes, 0, bytes.length);
+        } else if (value instanceof Boolean) {
+            output.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer) {
+            output.write(INTEGER);
+            output.writeVarLong(zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            output.write(LONG);
+            output.writeVarLong(zigZag((Long) value));
+        } else if (value instanceof Double) {
+            output.write(DOUBLE);
+            output.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            output.write(FLOAT);
+            output.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Short) {
+            output.write(SHORT);
+            output.writeVarLong(zigZag((Short) value));
+        } else if (value instanceof Byte) {
+            output.write(BYTE);
+            output.write((Byte) value);
+        } else if (value instanceof Character) {
+            output.write(CHARACTER);
+            output.writeVarLong((Character) value);
+        } else if ((value instanceof List || value instanceof Set) && isCompactCollection(value)) {
+            Collection<?> collection = (Collection<?>) value;
+            output.write(value instanceof List ? LIST : SET);
+            output.writeVarLong(collection.size());
+            for (Object element : collection) {
+                write(element, output);
+            }
+        } else if (value instanceof Map && isCompactCollection(value)) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.write(MAP);
+            output.writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(entry.getKey(), output);
+                write(entry.getValue(), output);
+            }
+        } else if (value instanceof Serializable) {
+            output.write(SERIALIZABLE);
+            output.writeInt(0);
+            int start = output.size();
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(output);
+            objectOutputStream.writeObject(value);
+            objectOutputStream.flush();
+            output.asByteBuffer().putInt(start - 4, output.size() - start);
+        } else {
+            throw new IOException("Value of " + value.getClass() + " is not serializable");
+        }
+    }
+
+    /**
+     * @return Whether the collection is read back as an instance of its own type.
+     */
+    private static boolean isCompactCollection(Object value) {
+        Class<?> type = value.getClass();
+        return type == ArrayList.class || type == HashSet.class || type == LinkedHashSet.class ||
+                type == HashMap.class || type == LinkedHashMap.class;
+    }
+
+    private static Object read(ByteBuffer input) throws IOException {
+        byte tag = input.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return Buffers.readUtf8(input, Buffers.readVarInt(input));
+            case BYTES:
+                byte[] bytes = new byte[Buffers.readVarInt(input)];
+                input.get(bytes);
+                return bytes;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INTEGER:
+                return (int) unZigZag(Buffers.readVarLong(input));
+            case LONG:
+                return unZigZag(Buffers.readVarLong(input));
+            case DOUBLE:
+                return Double.longBitsToDouble(input.getLong());
+            case FLOAT:
+                return Float.intBitsToFloat(input.getInt());
+            case SHORT:
+                return (short) unZigZag(Buffers.readVarLong(input));
+            case BYTE:
+                return input.get();
+            case CHARACTER:
+                return (char) Buffers.readVarInt(input);
+            case LIST: {
+                int size = Buffers.readVarInt(input);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(input));
+                }
+                return list;
+            }
+            case SET: {
+                int size = Buffers.readVarInt(input);
+                Set<Object> set = new LinkedHashSet<>();
+                for (int i = 0; i < size; i++) {
+                    set.add(read(input));
+                }
+                return set;
+            }
+            case MAP: {
+                int size = Buffers.readVarInt(input);
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(read(input), read(input));
+                }
+                return map;
+            }
+            case SERIALIZABLE: {
+                int length = input.getInt();
+                ByteBuffer serialized = input.slice();
+                serialized.limit(length);
+                input.position(input.position() + length);
+                try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteBufferInputStream(serialized))) {
+                    return objectInputStream.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Couldn't deserialize value", e);
+                }
+            }
+            default:
+                throw new IOException("Unknown value tag=" + tag);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
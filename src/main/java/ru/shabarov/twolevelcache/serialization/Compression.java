@@ -0,0 +1,18 @@
+package ru.shabarov.twolevelcache.serialization;
+
+/**
+ * Compression of serialized values before they are persisted.
+ */
+public enum Compression {
+
+    /**
+     * Values are persisted as they are serialized.
+     */
+    NONE,
+
+    /**
+     * Values are compressed by the Snappy algorithm, which is as fast as LZ4 and trades the compression ratio
+     * for speed. Values which don't shrink are persisted as they are.
+     */
+    SNAPPY
+}
@@ -0,0 +1,31 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import ru.shabarov.twolevelcache.storage.ByteBufferInputStream;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Persists values with the Java serialization, the format of
+ * {@link com.blogspot.mydailyjava.guava.cache.overflow.FileSystemPersistingCache}. Used by default.
+ */
+public class JavaSerializer implements Serializer<Object, Object> {
+
+    @Override
+    public void serialize(Object key, Object value, BufferOutput output) throws IOException {
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(output);
+        objectOutputStream.writeObject(value);
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public Object deserialize(Object key, ByteBuffer input) throws IOException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteBufferInputStream(input))) {
+            return objectInputStream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Couldn't deserialize value of key=" + key, e);
+        }
+    }
+}
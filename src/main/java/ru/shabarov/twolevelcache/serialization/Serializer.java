@@ -0,0 +1,30 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts values of the cache to bytes when they are persisted and back when they are found on the file level.
+ *
+ * @param <K> A type of keys, which are passed for the context only.
+ * @param <V> A type of values.
+ */
+public interface Serializer<K, V> {
+
+    /**
+     * @param key    A key of the value.
+     * @param value  A value to be persisted.
+     * @param output A reusable buffer to write the serialized value to.
+     * @throws IOException If the value couldn't be serialized.
+     */
+    void serialize(K key, V value, BufferOutput output) throws IOException;
+
+    /**
+     * @param key   A key of the value, {@code null} when persisted values are verified on a warm restart.
+     * @param input A buffer with the serialized value between its position and limit. It may be a view of a mapped
+     *              file and must not be retained after the call.
+     * @return The deserialized value.
+     * @throws IOException If the value couldn't be deserialized.
+     */
+    V deserialize(K key, ByteBuffer input) throws IOException;
+}
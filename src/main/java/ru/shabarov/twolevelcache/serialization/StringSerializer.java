@@ -0,0 +1,19 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Persists string values as UTF-8.
+ */
+public class StringSerializer implements Serializer<Object, String> {
+
+    @Override
+    public void serialize(Object key, String value, BufferOutput output) {
+        output.writeUtf8(value);
+    }
+
+    @Override
+    public String deserialize(Object key, ByteBuffer input) {
+        return Buffers.readUtf8(input, input.remaining());
+    }
+}
@@ -0,0 +1,155 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses serialized values on their way to the persisted level and decompresses them on the way back.
+ * Unless the compression is {@link Compression#NONE}, every encoded value starts with a byte telling whether
+ * it is compressed, values smaller than the threshold are stored raw.
+ * <p>
+ * Intermediate buffers are kept per thread and reused, so neither encoding nor decoding allocates once they have
+ * grown to the size of typical values.
+ */
+public final class ValueCompressor {
+
+    private static final byte RAW = 0;
+    private static final byte COMPRESSED = 1;
+    private static final int INITIAL_SCRATCH = 256;
+    private static final int MAXIMUM_RETAINED_SCRATCH = 1024 * 1024;
+
+    private static final ThreadLocal<BufferOutput> THREAD_OUTPUT = ThreadLocal.withInitial(BufferOutput::new);
+    private static final ThreadLocal<byte[]> INPUT_SCRATCH = ThreadLocal.withInitial(() -> new byte[INITIAL_SCRATCH]);
+    private static final ThreadLocal<byte[]> OUTPUT_SCRATCH = ThreadLocal.withInitial(() -> new byte[INITIAL_SCRATCH]);
+
+    private final Compression compression;
+    private final int threshold;
+
+    /**
+     * @param compression A compression of values.
+     * @param threshold   A minimum size in bytes of compressed values.
+     */
+    public ValueCompressor(Compression compression, int threshold) {
+        this.compression = compression;
+        this.threshold = threshold;
+    }
+
+    public boolean isEnabled() {
+        return compression != Compression.NONE;
+    }
+
+    /**
+     * @return The empty output of the current thread for encoded values. It must not be used after the thread
+     * requests it again.
+     */
+    public BufferOutput outputOfCurrentThread() {
+        BufferOutput output = THREAD_OUTPUT.get();
+        output.reset();
+        return output;
+    }
+
+    /**
+     * @param serialized A serialized value between its position and limit.
+     * @param output     An output to append the encoded value to.
+     * @return A view of the encoded value, or the serialized value itself if the compression is disabled.
+     */
+    public ByteBuffer encode(ByteBuffer serialized, BufferOutput output) {
+        if (!isEnabled()) {
+            return serialized;
+        }
+        int start = output.size();
+        int length = serialized.remaining();
+        byte[] compressed = length < threshold ? null : scratch(OUTPUT_SCRATCH, Snappy.maxCompressedLength(length));
+        int compressedLength = compressed == null ? length : compress(serialized, compressed);
+        if (compressedLength < length) {
+            output.write(COMPRESSED);
+            output.write(compressed, 0, compressedLength);
+        } else {
+            output.write(RAW);
+            output.write(serialized);
+        }
+        ByteBuffer encoded = output.asByteBuffer();
+        encoded.position(start);
+        return encoded.slice();
+    }
+
+    /**
+     * @return Whether the given encoded value is compressed.
+     */
+    public boolean isCompressed(ByteBuffer encoded) {
+        return isEnabled() && encoded.get(encoded.position()) == COMPRESSED;
+    }
+
+    /**
+     * @param stored An encoded value between its position and limit.
+     * @return The serialized value, which is valid until the thread decodes another value.
+     * @throws IOException If the value is corrupt.
+     */
+    public ByteBuffer decode(ByteBuffer stored) throws IOException {
+        if (!isEnabled()) {
+            return stored;
+        }
+        ByteBuffer input = stored.duplicate();
+        if (!input.hasRemaining()) {
+            throw new IOException("Persisted value is empty");
+        }
+        byte encoding = input.get();
+        if (encoding == RAW) {
+            return input.slice();
+        }
+        if (encoding != COMPRESSED) {
+            throw new IOException("Unknown encoding=" + encoding + " of persisted value");
+        }
+        int length = input.remaining();
+        byte[] compressed;
+        int offset;
+        if (input.hasArray()) {
+            compressed = input.array();
+            offset = input.arrayOffset() + input.position();
+        } else {
+            compressed = scratch(INPUT_SCRATCH, length);
+            input.get(compressed, 0, length);
+            offset = 0;
+        }
+        try {
+            int uncompressedLength = Snappy.getUncompressedLength(compressed, offset);
+            byte[] uncompressed = scratch(OUTPUT_SCRATCH, uncompressedLength);
+            Snappy.uncompress(compressed, offset, length, uncompressed, 0);
+            return ByteBuffer.wrap(uncompressed, 0, uncompressedLength);
+        } catch (CorruptionException e) {
+            throw new IOException("Persisted value is corrupt", e);
+        }
+    }
+
+    /**
+     * @return The compressed length.
+     */
+    private static int compress(ByteBuffer serialized, byte[] compressed) {
+        int length = serialized.remaining();
+        byte[] input;
+        int offset;
+        if (serialized.hasArray()) {
+            input = serialized.array();
+            offset = serialized.arrayOffset() + serialized.position();
+        } else {
+            input = scratch(INPUT_SCRATCH, length);
+            serialized.duplicate().get(input, 0, length);
+            offset = 0;
+        }
+        return Snappy.compress(input, offset, length, compressed, 0);
+    }
+
+    private static byte[] scratch(ThreadLocal<byte[]> threadScratch, int length) {
+        byte[] scratch = threadScratch.get();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            if (scratch.length <= MAXIMUM_RETAINED_SCRATCH) {
+                threadScratch.set(scratch);
+            }
+        }
+        return scratch;
+    }
+}
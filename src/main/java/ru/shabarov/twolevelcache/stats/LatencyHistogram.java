@@ -0,0 +1,93 @@
+package ru.shabarov.twolevelcache.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records latencies into power of two buckets of nanoseconds, every bucket is a striped counter,
+ * so concurrent recording doesn't contend.
+ */
+public final class LatencyHistogram {
+
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long positiveNanos = Math.max(0, nanos);
+        buckets[Math.max(0, BUCKETS - 1 - Long.numberOfLeadingZeros(positiveNanos))].increment();
+        totalNanos.add(positiveNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, totalNanos.sum());
+    }
+
+    /**
+     * An immutable state of a histogram. Percentiles are reported as the upper bound of their bucket,
+     * so they are precise up to a factor of two.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+
+        Snapshot(long[] counts, long totalNanos) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+            this.totalNanos = totalNanos;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double meanNanos() {
+            return count == 0 ? 0.0 : (double) totalNanos / count;
+        }
+
+        /**
+         * @param percentile A percentile in (0, 100].
+         * @return An upper bound of the latency in nanoseconds below which the given percent of records are.
+         */
+        public long percentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "count=" + count +
+                    ", meanNanos=" + meanNanos() +
+                    ", p50Nanos=" + percentileNanos(50) +
+                    ", p99Nanos=" + percentileNanos(99) +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ru.shabarov.twolevelcache.stats;
+
+import com.google.common.cache.CacheStats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates statistics of the persisted level of a cache. All counters are striped, so recording on the hot
+ * paths doesn't contend. A disabled recorder ignores all records and doesn't read the clock.
+ */
+public final class StatsRecorder {
+
+    private final boolean enabled;
+    private final LongAdder memoryHitCount = new LongAdder();
+    private final LongAdder persistedHitCount = new LongAdder();
+    private final LongAdder persistedMissCount = new LongAdder();
+    private final LongAdder persistedWriteCount = new LongAdder();
+    private final LongAdder persistedWrittenBytes = new LongAdder();
+    private final LongAdder persistedCompressedBytes = new LongAdder();
+    private final LongAdder persistedUncompressedBytes = new LongAdder();
+    private final LongAdder persistedEvictionCount = new LongAdder();
+    private final LongAdder persistedExpirationCount = new LongAdder();
+    private final LongAdder filterNegativeCount = new LongAdder();
+    private final LongAdder filterFalsePositiveCount = new LongAdder();
+    private final LatencyHistogram persistLatency = new LatencyHistogram();
+    private final LatencyHistogram findLatency = new LatencyHistogram();
+
+    private StatsRecorder(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public static StatsRecorder enabled() {
+        return new StatsRecorder(true);
+    }
+
+    public static StatsRecorder disabled() {
+        return new StatsRecorder(false);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return A start time of a timed operation, to be passed back when the operation is recorded.
+     */
+    public long startTime() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records a memory hit of a lookup which has bypassed the statistics of the memory level.
+     */
+    public void recordMemoryHits(int count) {
+        if (enabled) {
+            memoryHitCount.add(count);
+        }
+    }
+
+    /**
+     * @return Statistics of the memory hits recorded here, to be added to the statistics of the memory level.
+     */
+    public CacheStats memoryHitStats() {
+        return new CacheStats(memoryHitCount.sum(), 0, 0, 0, 0, 0);
+    }
+
+    public void recordFind(long startTime, boolean isFound) {
+        if (enabled) {
+            findLatency.record(System.nanoTime() - startTime);
+            (isFound ? persistedHitCount : persistedMissCount).increment();
+        }
+    }
+
+    public void recordFinds(int foundCount, int missedCount) {
+        if (enabled) {
+            persistedHitCount.add(foundCount);
+            persistedMissCount.add(missedCount);
+        }
+    }
+
+    public void recordPersist(long startTime) {
+        if (enabled) {
+            persistLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
+    public void recordWrites(int count, long bytes) {
+        if (enabled) {
+            persistedWriteCount.add(count);
+            persistedWrittenBytes.add(bytes);
+        }
+    }
+
+    /**
+     * @param uncompressedBytes A size of a compressed value before compression.
+     * @param compressedBytes   A size of the value after compression.
+     */
+    public void recordCompression(long uncompressedBytes, long compressedBytes) {
+        if (enabled) {
+            persistedUncompressedBytes.add(uncompressedBytes);
+            persistedCompressedBytes.add(compressedBytes);
+        }
+    }
+
+    public void recordEviction() {
+        if (enabled) {
+            persistedEvictionCount.increment();
+        }
+    }
+
+    public void recordExpiration() {
+        if (enabled) {
+            persistedExpirationCount.increment();
+        }
+    }
+
+    /**
+     * Records a lookup which the filter of persisted entries has told to be a miss without touching the storage.
+     */
+    public void recordFilterNegative() {
+        if (enabled) {
+            filterNegativeCount.increment();
+        }
+    }
+
+    /**
+     * Records a lookup which has passed the filter of persisted entries, though the entry isn't persisted.
+     */
+    public void recordFilterFalsePositive() {
+        if (enabled) {
+            filterFalsePositiveCount.increment();
+        }
+    }
+
+    /**
+     * @param memoryStats      Statistics of the memory level.
+     * @param persistedEntries A current number of persisted entries.
+     * @param persistedWeight  A current total weight of persisted entries.
+     * @return A snapshot of the statistics of both levels.
+     */
+    public TwoLevelCacheStats snapshot(CacheStats memoryStats, long persistedEntries, long persistedWeight) {
+        return new TwoLevelCacheStats(memoryStats,
+                persistedHitCount.sum(),
+                persistedMissCount.sum(),
+                persistedWriteCount.sum(),
+                persistedWrittenBytes.sum(),
+                persistedCompressedBytes.sum(),
+                persistedUncompressedBytes.sum(),
+                persistedEvictionCount.sum(),
+                persistedExpirationCount.sum(),
+                filterNegativeCount.sum(),
+                filterFalsePositiveCount.sum(),
+                persistedEntries,
+                persistedWeight,
+                persistLatency.snapshot(),
+                findLatency.snapshot());
+    }
+}
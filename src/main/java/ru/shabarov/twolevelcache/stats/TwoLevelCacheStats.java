@@ -0,0 +1,212 @@
+package ru.shabarov.twolevelcache.stats;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Immutable statistics of both levels of a cache. Memory level counters come from the underlying Guava cache,
+ * persisted level counters and latencies are recorded by the cache itself. Both are recorded only if
+ * {@code recordStats()} is set on the builder.
+ * <p>
+ * A persisted hit is a value found on the persisted level after a memory miss, which is moved back to memory
+ * only if the promotion policy of the cache admits the hit. A persisted write is a value evicted from memory
+ * and persisted.
+ */
+public final class TwoLevelCacheStats {
+
+    private final CacheStats memoryStats;
+    private final long persistedHitCount;
+    private final long persistedMissCount;
+    private final long persistedWriteCount;
+    private final long persistedWrittenBytes;
+    private final long persistedCompressedBytes;
+    private final long persistedUncompressedBytes;
+    private final long persistedEvictionCount;
+    private final long persistedExpirationCount;
+    private final long filterNegativeCount;
+    private final long filterFalsePositiveCount;
+    private final long persistedEntryCount;
+    private final long persistedWeight;
+    private final LatencyHistogram.Snapshot persistLatency;
+    private final LatencyHistogram.Snapshot findLatency;
+
+    TwoLevelCacheStats(CacheStats memoryStats, long persistedHitCount, long persistedMissCount,
+                       long persistedWriteCount, long persistedWrittenBytes, long persistedCompressedBytes,
+                       long persistedUncompressedBytes, long persistedEvictionCount,
+                       long persistedExpirationCount, long filterNegativeCount, long filterFalsePositiveCount,
+                       long persistedEntryCount, long persistedWeight,
+                       LatencyHistogram.Snapshot persistLatency, LatencyHistogram.Snapshot findLatency) {
+        this.memoryStats = memoryStats;
+        this.persistedHitCount = persistedHitCount;
+        this.persistedMissCount = persistedMissCount;
+        this.persistedWriteCount = persistedWriteCount;
+        this.persistedWrittenBytes = persistedWrittenBytes;
+        this.persistedCompressedBytes = persistedCompressedBytes;
+        this.persistedUncompressedBytes = persistedUncompressedBytes;
+        this.persistedEvictionCount = persistedEvictionCount;
+        this.persistedExpirationCount = persistedExpirationCount;
+        this.filterNegativeCount = filterNegativeCount;
+        this.filterFalsePositiveCount = filterFalsePositiveCount;
+        this.persistedEntryCount = persistedEntryCount;
+        this.persistedWeight = persistedWeight;
+        this.persistLatency = persistLatency;
+        this.findLatency = findLatency;
+    }
+
+    public CacheStats memoryStats() {
+        return memoryStats;
+    }
+
+    public long memoryHitCount() {
+        return memoryStats.hitCount();
+    }
+
+    public long memoryMissCount() {
+        return memoryStats.missCount();
+    }
+
+    public long memoryLoadCount() {
+        return memoryStats.loadCount();
+    }
+
+    public long memoryEvictionCount() {
+        return memoryStats.evictionCount();
+    }
+
+    public long persistedHitCount() {
+        return persistedHitCount;
+    }
+
+    public long persistedMissCount() {
+        return persistedMissCount;
+    }
+
+    public long persistedWriteCount() {
+        return persistedWriteCount;
+    }
+
+    /**
+     * @return A total size in bytes of the values which have been persisted, after compression.
+     */
+    public long persistedWrittenBytes() {
+        return persistedWrittenBytes;
+    }
+
+    /**
+     * @return A total size in bytes of the persisted values which have been stored compressed, after compression.
+     */
+    public long persistedCompressedBytes() {
+        return persistedCompressedBytes;
+    }
+
+    /**
+     * @return A total size in bytes of the persisted values which have been stored compressed, before compression.
+     */
+    public long persistedUncompressedBytes() {
+        return persistedUncompressedBytes;
+    }
+
+    /**
+     * @return A ratio of the compressed values size to their size before compression.
+     */
+    public double compressionRatio() {
+        return persistedUncompressedBytes == 0 ? 1.0 : (double) persistedCompressedBytes / persistedUncompressedBytes;
+    }
+
+    /**
+     * @return A number of persisted entries evicted as the persisted level maximum size or bytes are reached,
+     * including the outdated versions of entries which aren't admitted by the eviction policy.
+     */
+    public long persistedEvictionCount() {
+        return persistedEvictionCount;
+    }
+
+    public long persistedExpirationCount() {
+        return persistedExpirationCount;
+    }
+
+    /**
+     * @return A number of the persisted lookups which the filter of persisted entries has told to be misses,
+     * without touching the storage.
+     */
+    public long filterNegativeCount() {
+        return filterNegativeCount;
+    }
+
+    /**
+     * @return A number of the persisted lookups which have passed the filter of persisted entries,
+     * though the entries haven't been persisted.
+     */
+    public long filterFalsePositiveCount() {
+        return filterFalsePositiveCount;
+    }
+
+    /**
+     * @return A share of the lookups of not persisted entries which have passed the filter of persisted entries.
+     */
+    public double filterFalsePositiveRate() {
+        long negativeCount = filterNegativeCount + filterFalsePositiveCount;
+        return negativeCount == 0 ? 0.0 : (double) filterFalsePositiveCount / negativeCount;
+    }
+
+    public long persistedEntryCount() {
+        return persistedEntryCount;
+    }
+
+    /**
+     * @return A current total weight of the persisted entries, their size in bytes unless a disk weigher is set.
+     */
+    public long persistedWeight() {
+        return persistedWeight;
+    }
+
+    /**
+     * @return A share of the requests which have been served by either level.
+     */
+    public double hitRate() {
+        long requestCount = memoryStats.requestCount();
+        return requestCount == 0 ? 1.0 : (double) (memoryStats.hitCount() + persistedHitCount) / requestCount;
+    }
+
+    /**
+     * @return A share of the memory misses which have been served by the persisted level.
+     */
+    public double persistedHitRate() {
+        long requestCount = persistedHitCount + persistedMissCount;
+        return requestCount == 0 ? 1.0 : (double) persistedHitCount / requestCount;
+    }
+
+    /**
+     * @return Latencies of persisting a single value evicted from memory.
+     */
+    public LatencyHistogram.Snapshot persistLatency() {
+        return persistLatency;
+    }
+
+    /**
+     * @return Latencies of looking a single value up on the persisted level.
+     */
+    public LatencyHistogram.Snapshot findLatency() {
+        return findLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "TwoLevelCacheStats{" +
+                "memoryStats=" + memoryStats +
+                ", persistedHitCount=" + persistedHitCount +
+                ", persistedMissCount=" + persistedMissCount +
+                ", persistedWriteCount=" + persistedWriteCount +
+                ", persistedWrittenBytes=" + persistedWrittenBytes +
+                ", persistedCompressedBytes=" + persistedCompressedBytes +
+                ", persistedUncompressedBytes=" + persistedUncompressedBytes +
+                ", persistedEvictionCount=" + persistedEvictionCount +
+                ", persistedExpirationCount=" + persistedExpirationCount +
+                ", filterNegativeCount=" + filterNegativeCount +
+                ", filterFalsePositiveCount=" + filterFalsePositiveCount +
+                ", persistedEntryCount=" + persistedEntryCount +
+                ", persistedWeight=" + persistedWeight +
+                ", persistLatency=" + persistLatency +
+                ", findLatency=" + findLatency +
+                '}';
+    }
+}
@@ -0,0 +1,160 @@
+package ru.shabarov.twolevelcache.stats;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+/**
+ * Exposes statistics of a cache through the platform MBean server
+ * as {@code ru.shabarov.twolevelcache:type=TwoLevelCache,name=<cache name>}.
+ */
+public final class TwoLevelCacheStatsBean implements TwoLevelCacheStatsMXBean {
+
+    private final Supplier<TwoLevelCacheStats> stats;
+
+    private TwoLevelCacheStatsBean(Supplier<TwoLevelCacheStats> stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @param cacheName A name of the cache, unique within the JVM.
+     * @param stats     A source of the statistics snapshots.
+     * @return A name of the registered bean.
+     * @throws JMException If the bean couldn't be registered.
+     */
+    public static ObjectName register(String cacheName, Supplier<TwoLevelCacheStats> stats) throws JMException {
+        ObjectName objectName = new ObjectName("ru.shabarov.twolevelcache:type=TwoLevelCache,name=" +
+                ObjectName.quote(cacheName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new TwoLevelCacheStatsBean(stats), objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) throws JMException {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        if (mBeanServer.isRegistered(objectName)) {
+            mBeanServer.unregisterMBean(objectName);
+        }
+    }
+
+    @Override
+    public long getMemoryHitCount() {
+        return stats.get().memoryHitCount();
+    }
+
+    @Override
+    public long getMemoryMissCount() {
+        return stats.get().memoryMissCount();
+    }
+
+    @Override
+    public long getMemoryLoadCount() {
+        return stats.get().memoryLoadCount();
+    }
+
+    @Override
+    public long getMemoryEvictionCount() {
+        return stats.get().memoryEvictionCount();
+    }
+
+    @Override
+    public long getPersistedHitCount() {
+        return stats.get().persistedHitCount();
+    }
+
+    @Override
+    public long getPersistedMissCount() {
+        return stats.get().persistedMissCount();
+    }
+
+    @Override
+    public long getPersistedWriteCount() {
+        return stats.get().persistedWriteCount();
+    }
+
+    @Override
+    public long getPersistedWrittenBytes() {
+        return stats.get().persistedWrittenBytes();
+    }
+
+    @Override
+    public long getPersistedCompressedBytes() {
+        return stats.get().persistedCompressedBytes();
+    }
+
+    @Override
+    public long getPersistedUncompressedBytes() {
+        return stats.get().persistedUncompressedBytes();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return stats.get().compressionRatio();
+    }
+
+    @Override
+    public long getPersistedEvictionCount() {
+        return stats.get().persistedEvictionCount();
+    }
+
+    @Override
+    public long getPersistedExpirationCount() {
+        return stats.get().persistedExpirationCount();
+    }
+
+    @Override
+    public long getFilterNegativeCount() {
+        return stats.get().filterNegativeCount();
+    }
+
+    @Override
+    public long getFilterFalsePositiveCount() {
+        return stats.get().filterFalsePositiveCount();
+    }
+
+    @Override
+    public double getFilterFalsePositiveRate() {
+        return stats.get().filterFalsePositiveRate();
+    }
+
+    @Override
+    public long getPersistedEntryCount() {
+        return stats.get().persistedEntryCount();
+    }
+
+    @Override
+    public long getPersistedWeight() {
+        return stats.get().persistedWeight();
+    }
+
+    @Override
+    public double getHitRate() {
+        return stats.get().hitRate();
+    }
+
+    @Override
+    public double getPersistedHitRate() {
+        return stats.get().persistedHitRate();
+    }
+
+    @Override
+    public double getPersistLatencyMeanNanos() {
+        return stats.get().persistLatency().meanNanos();
+    }
+
+    @Override
+    public long getPersistLatency99thPercentileNanos() {
+        return stats.get().persistLatency().percentileNanos(99);
+    }
+
+    @Override
+    public double getFindLatencyMeanNanos() {
+        return stats.get().findLatency().meanNanos();
+    }
+
+    @Override
+    public long getFindLatency99thPercentileNanos() {
+        return stats.get().findLatency().percentileNanos(99);
+    }
+}
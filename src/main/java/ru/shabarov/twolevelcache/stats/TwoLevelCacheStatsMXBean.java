@@ -0,0 +1,55 @@
+package ru.shabarov.twolevelcache.stats;
+
+/**
+ * JMX view of {@link TwoLevelCacheStats}, every attribute is read from a fresh snapshot.
+ */
+public interface TwoLevelCacheStatsMXBean {
+
+    long getMemoryHitCount();
+
+    long getMemoryMissCount();
+
+    long getMemoryLoadCount();
+
+    long getMemoryEvictionCount();
+
+    long getPersistedHitCount();
+
+    long getPersistedMissCount();
+
+    long getPersistedWriteCount();
+
+    long getPersistedWrittenBytes();
+
+    long getPersistedCompressedBytes();
+
+    long getPersistedUncompressedBytes();
+
+    double getCompressionRatio();
+
+    long getPersistedEvictionCount();
+
+    long getPersistedExpirationCount();
+
+    long getFilterNegativeCount();
+
+    long getFilterFalsePositiveCount();
+
+    double getFilterFalsePositiveRate();
+
+    long getPersistedEntryCount();
+
+    long getPersistedWeight();
+
+    double getHitRate();
+
+    double getPersistedHitRate();
+
+    double getPersistLatencyMeanNanos();
+
+    long getPersistLatency99thPercentileNanos();
+
+    double getFindLatencyMeanNanos();
+
+    long getFindLatency99thPercentileNanos();
+}
@@ -0,0 +1,125 @@
+package ru.shabarov.twolevelcache.storage;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persists every entry to its own file under the root directory, the file path is the entry identifier.
+ * This is the layout of {@link com.blogspot.mydailyjava.guava.cache.overflow.FileSystemPersistingCache}.
+ */
+public class FilePerKeyStorage implements PersistenceStorage {
+
+    private final File rootDirectory;
+
+    public FilePerKeyStorage(File rootDirectory) {
+        this.rootDirectory = rootDirectory;
+    }
+
+    @Override
+    public void write(String id, ByteBuffer value) throws IOException {
+        File file = fileFor(id);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            FileLock lock = outputStream.getChannel().lock();
+            try {
+                ByteBuffer remaining = value.duplicate();
+                while (remaining.hasRemaining()) {
+                    outputStream.getChannel().write(remaining);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer read(String id) throws IOException {
+        File file = fileFor(id);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileLock lock = inputStream.getChannel().lock(0L, Long.MAX_VALUE, true);
+            try {
+                return ByteBuffer.wrap(ByteStreams.toByteArray(inputStream));
+            } finally {
+                lock.release();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the files in the order of their paths, so files of the same directory are read together.
+     */
+    @Override
+    public Map<String, ByteBuffer> readAll(Collection<String> ids) throws IOException {
+        Map<String, ByteBuffer> values = new HashMap<>();
+        for (String id : new TreeSet<>(ids)) {
+            ByteBuffer value = read(id);
+            if (value != null) {
+                values.put(id, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean delete(String id) {
+        File file = fileFor(id);
+        return file.delete() || !file.exists();
+    }
+
+    @Override
+    public void deleteAll() throws IOException {
+        Path root = rootDirectory.toPath();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(p -> !p.equals(root))
+                    .sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public List<StoredEntry> entries() throws IOException {
+        Path root = rootDirectory.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(f -> !f.getFileName().toString().startsWith("."))
+                    .map(f -> new StoredEntry(root.relativize(f).toString(), f.toFile().lastModified(),
+                            f.toFile().length()))
+                    .sorted(Comparator.comparingLong(StoredEntry::getPersistedTime))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private File fileFor(String id) {
+        return new File(rootDirectory, id);
+    }
+}
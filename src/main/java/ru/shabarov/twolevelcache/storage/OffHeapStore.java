@@ -0,0 +1,153 @@
+package ru.shabarov.twolevelcache.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps serialized values outside of the heap in direct buffer slabs, which are filled one after another.
+ * When the byte budget is exhausted, the eldest slab is evicted as a whole and its live entries are handed
+ * over to the caller to be persisted further. The evicted slab is reused as the next one, so the store
+ * allocates native memory up to its budget once; values leave the slabs as heap copies only.
+ */
+public class OffHeapStore {
+
+    private final int slabSize;
+    private final int maximumSlabs;
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final Deque<Slab> slabs = new ArrayDeque<>();
+    private Slab activeSlab;
+
+    /**
+     * @param maximumBytes A total size of the slabs.
+     * @param slabSize     A size of a single slab, bigger values are not accepted.
+     */
+    public OffHeapStore(long maximumBytes, int slabSize) {
+        checkArgument(slabSize > 0 && slabSize <= maximumBytes, "slab size must be in (0, %s]: %s",
+                maximumBytes, slabSize);
+        this.slabSize = slabSize;
+        this.maximumSlabs = (int) Math.min(Integer.MAX_VALUE, maximumBytes / slabSize);
+    }
+
+    public boolean fits(ByteBuffer value) {
+        return value.remaining() <= slabSize;
+    }
+
+    /**
+     * Stores a value, replacing the previous one with the same identifier.
+     *
+     * @param id    An identifier of the entry.
+     * @param value A buffer with the serialized value between its position and limit, which {@link #fits(ByteBuffer)}.
+     * @return Entries evicted to make room for the value, their buffers stay valid after the call.
+     */
+    public synchronized Map<String, ByteBuffer> put(String id, ByteBuffer value) {
+        checkArgument(fits(value), "value of %s bytes doesn't fit a slab of %s bytes", value.remaining(), slabSize);
+        delete(id);
+        Map<String, ByteBuffer> evicted = Collections.emptyMap();
+        int length = value.remaining();
+        if (activeSlab == null || activeSlab.buffer.remaining() < length) {
+            if (slabs.size() >= maximumSlabs) {
+                Slab eldestSlab = slabs.pollFirst();
+                evicted = evict(eldestSlab);
+                eldestSlab.buffer.clear();
+                activeSlab = new Slab(eldestSlab.buffer);
+            } else {
+                activeSlab = new Slab(ByteBuffer.allocateDirect(slabSize));
+            }
+            slabs.addLast(activeSlab);
+        }
+        int offset = activeSlab.buffer.position();
+        activeSlab.buffer.put(value.duplicate());
+        activeSlab.ids.add(id);
+        slots.put(id, new Slot(activeSlab, offset, length));
+        return evicted;
+    }
+
+    /**
+     * @return A heap copy of the stored value, or {@code null} if nothing is stored.
+     */
+    public synchronized ByteBuffer get(String id) {
+        Slot slot = slots.get(id);
+        return slot == null ? null : slot.copy();
+    }
+
+    public boolean contains(String id) {
+        return slots.containsKey(id);
+    }
+
+    public synchronized boolean delete(String id) {
+        return slots.remove(id) != null;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Removes all the entries.
+     *
+     * @return The removed entries, their buffers stay valid after the call.
+     */
+    public synchronized Map<String, ByteBuffer> clear() {
+        Map<String, ByteBuffer> entries = new LinkedHashMap<>();
+        while (!slabs.isEmpty()) {
+            entries.putAll(evict(slabs.pollFirst()));
+        }
+        activeSlab = null;
+        return entries;
+    }
+
+    private Map<String, ByteBuffer> evict(Slab slab) {
+        Map<String, ByteBuffer> evicted = new LinkedHashMap<>();
+        for (String id : slab.ids) {
+            Slot slot = slots.get(id);
+            if (slot != null && slot.slab == slab) {
+                slots.remove(id);
+                evicted.put(id, slot.copy());
+            }
+        }
+        return evicted;
+    }
+
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+        private final List<String> ids = new ArrayList<>();
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Slot {
+
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+
+        private Slot(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private ByteBuffer copy() {
+            ByteBuffer view = slab.buffer.duplicate();
+            view.limit(offset + length);
+            view.position(offset);
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(view);
+            copy.flip();
+            return copy;
+        }
+    }
+}
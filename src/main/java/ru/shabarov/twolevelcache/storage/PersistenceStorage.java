@@ -0,0 +1,85 @@
+package ru.shabarov.twolevelcache.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage engine of the persisted cache level. Entries are addressed by an identifier derived from the cache key
+ * and are stored as already serialized values.
+ */
+public interface PersistenceStorage extends Closeable {
+
+    /**
+     * Stores a value, replacing the previous one with the same identifier.
+     *
+     * @param id    An identifier of the entry.
+     * @param value A buffer with the serialized value between its position and limit, it isn't retained.
+     * @throws IOException If the value couldn't be stored.
+     */
+    void write(String id, ByteBuffer value) throws IOException;
+
+    /**
+     * @param id An identifier of the entry.
+     * @return A buffer with the serialized value between its position and limit, or {@code null} if nothing is stored.
+     * @throws IOException If the value couldn't be read.
+     */
+    ByteBuffer read(String id) throws IOException;
+
+    /**
+     * @param id An identifier of the entry.
+     * @return {@code false} if the entry is still stored after the call.
+     * @throws IOException If the entry couldn't be deleted.
+     */
+    boolean delete(String id) throws IOException;
+
+    void deleteAll() throws IOException;
+
+    /**
+     * Stores a batch of values, replacing the previous ones with the same identifiers.
+     *
+     * @param values Buffers with the serialized values by identifiers, they aren't retained.
+     * @throws IOException If the values couldn't be stored.
+     */
+    default void writeAll(Map<String, ByteBuffer> values) throws IOException {
+        for (Map.Entry<String, ByteBuffer> value : values.entrySet()) {
+            write(value.getKey(), value.getValue());
+        }
+    }
+
+    /**
+     * @param ids Identifiers of the entries.
+     * @return Buffers with the serialized values of the stored entries by identifiers.
+     * @throws IOException If the values couldn't be read.
+     */
+    default Map<String, ByteBuffer> readAll(Collection<String> ids) throws IOException {
+        Map<String, ByteBuffer> values = new HashMap<>();
+        for (String id : ids) {
+            ByteBuffer value = read(id);
+            if (value != null) {
+                values.put(id, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param ids Identifiers of the entries.
+     * @throws IOException If the entries couldn't be deleted.
+     */
+    default void delete(Collection<String> ids) throws IOException {
+        for (String id : ids) {
+            delete(id);
+        }
+    }
+
+    /**
+     * @return Entries which are stored at the moment, the eldest persisted first.
+     * @throws IOException If the storage couldn't be traversed.
+     */
+    List<StoredEntry> entries() throws IOException;
+}
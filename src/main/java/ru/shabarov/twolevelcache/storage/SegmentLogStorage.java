@@ -0,0 +1,572 @@
+package ru.shabarov.twolevelcache.storage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Appends entries to segment files and keeps the location of every live entry in memory. Overwritten and deleted
+ * entries leave dead space in their segments; once the dead space of a segment reaches the compaction threshold,
+ * its live entries are copied to the active segment in background and the segment file is deleted.
+ * <p>
+ * Optionally sealed segments are read through memory mappings, which are reused across lookups while the total size
+ * of mapped segments fits the given budget. Values are then returned as views of the mappings without copying.
+ * <p>
+ * A record consists of a CRC32 checksum, the persisting time, the identifier length, the value length
+ * (negative for a deletion mark), the identifier and the value.
+ */
+public class SegmentLogStorage implements PersistenceStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentLogStorage.class);
+
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final int RECORD_HEADER_LENGTH = 4 + 8 + 4 + 4;
+    private static final int TOMBSTONE_LENGTH = -1;
+    private static final int INITIAL_APPEND_BUFFER = 4096;
+    private static final int MAXIMUM_RETAINED_APPEND_BUFFER = 1024 * 1024;
+
+    private final File rootDirectory;
+    private final long segmentSize;
+    private final double compactionThreshold;
+    private final ConcurrentMap<String, Location> locations = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private final Set<Long> scheduledCompactions = ConcurrentHashMap.newKeySet();
+    private final long maximumMappedBytes;
+    private final Deque<Segment> mappedSegments = new ArrayDeque<>();
+    private long mappedBytes;
+    private final ExecutorService compactionExecutorService = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("two-level-cache-compaction-%d").setDaemon(true).build());
+    private volatile Segment activeSegment;
+    private volatile boolean closed;
+    private ByteBuffer appendBuffer = ByteBuffer.allocate(INITIAL_APPEND_BUFFER);
+
+    /**
+     * Opens a storage in the given directory, entries of the segments which are already present there are recovered.
+     *
+     * @param rootDirectory       A directory which is used by this storage only.
+     * @param segmentSize         A size in bytes after which the active segment is sealed and a new one is started.
+     * @param compactionThreshold A share of dead space in a sealed segment after which the segment is compacted.
+     * @throws IOException If the present segments couldn't be read.
+     */
+    public SegmentLogStorage(File rootDirectory, long segmentSize, double compactionThreshold) throws IOException {
+        this(rootDirectory, segmentSize, compactionThreshold, 0L);
+    }
+
+    /**
+     * Opens a storage in the given directory, entries of the segments which are already present there are recovered.
+     *
+     * @param rootDirectory       A directory which is used by this storage only.
+     * @param segmentSize         A size in bytes after which the active segment is sealed and a new one is started.
+     * @param compactionThreshold A share of dead space in a sealed segment after which the segment is compacted.
+     * @param maximumMappedBytes  A total size of sealed segments which may be memory mapped at once,
+     *                            {@code 0} disables memory mapped reads.
+     * @throws IOException If the present segments couldn't be read.
+     */
+    public SegmentLogStorage(File rootDirectory, long segmentSize, double compactionThreshold,
+                             long maximumMappedBytes) throws IOException {
+        checkArgument(segmentSize > RECORD_HEADER_LENGTH, "segment size is too small: %s", segmentSize);
+        checkArgument(compactionThreshold > 0 && compactionThreshold <= 1,
+                "compaction threshold must be in (0, 1]: %s", compactionThreshold);
+        checkArgument(maximumMappedBytes >= 0, "maximum mapped bytes must not be negative: %s", maximumMappedBytes);
+        this.rootDirectory = rootDirectory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.maximumMappedBytes = maximumMappedBytes;
+        recover();
+        synchronized (appendLock) {
+            this.activeSegment = openSegment(segments.isEmpty() ? 0L : segments.lastKey() + 1);
+            for (Segment segment : segments.values()) {
+                scheduleCompactionIfNeeded(segment);
+            }
+        }
+    }
+
+    @Override
+    public void write(String id, ByteBuffer value) throws IOException {
+        synchronized (appendLock) {
+            Location location = append(id, value, System.currentTimeMillis());
+            Location previous = locations.put(id, location);
+            if (previous != null) {
+                markDead(previous);
+            }
+        }
+    }
+
+    /**
+     * Appends the whole batch under a single acquisition of the append lock, so its records are adjacent.
+     */
+    @Override
+    public void writeAll(Map<String, ByteBuffer> values) throws IOException {
+        synchronized (appendLock) {
+            long persistedTime = System.currentTimeMillis();
+            for (Map.Entry<String, ByteBuffer> value : values.entrySet()) {
+                Location previous = locations.put(value.getKey(), append(value.getKey(), value.getValue(), persistedTime));
+                if (previous != null) {
+                    markDead(previous);
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer read(String id) throws IOException {
+        segmentsLock.readLock().lock();
+        try {
+            Location location = locations.get(id);
+            return location == null ? null : read(location);
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the values in the order of their locations in segments.
+     */
+    @Override
+    public Map<String, ByteBuffer> readAll(Collection<String> ids) throws IOException {
+        segmentsLock.readLock().lock();
+        try {
+            List<Map.Entry<String, Location>> found = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                Location location = locations.get(id);
+                if (location != null) {
+                    found.add(new AbstractMap.SimpleImmutableEntry<>(id, location));
+                }
+            }
+            found.sort(Comparator.comparing((Map.Entry<String, Location> e) -> e.getValue().segmentId)
+                    .thenComparingLong(e -> e.getValue().offset));
+            Map<String, ByteBuffer> values = new HashMap<>();
+            for (Map.Entry<String, Location> entry : found) {
+                values.put(entry.getKey(), read(entry.getValue()));
+            }
+            return values;
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String id) throws IOException {
+        synchronized (appendLock) {
+            Location previous = locations.remove(id);
+            if (previous != null) {
+                markDead(previous);
+                markDead(append(id, null, System.currentTimeMillis()));
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void delete(Collection<String> ids) throws IOException {
+        synchronized (appendLock) {
+            long persistedTime = System.currentTimeMillis();
+            for (String id : ids) {
+                Location previous = locations.remove(id);
+                if (previous != null) {
+                    markDead(previous);
+                    markDead(append(id, null, persistedTime));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteAll() throws IOException {
+        synchronized (appendLock) {
+            segmentsLock.writeLock().lock();
+            try {
+                long nextSegmentId = activeSegment.id + 1;
+                for (Segment segment : segments.values()) {
+                    unmap(segment);
+                    segment.channel.close();
+                    Files.deleteIfExists(segment.file.toPath());
+                }
+                segments.clear();
+                locations.clear();
+                activeSegment = openSegment(nextSegmentId);
+            } finally {
+                segmentsLock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public List<StoredEntry> entries() {
+        return locations.entrySet().stream()
+                .map(e -> new StoredEntry(e.getKey(), e.getValue().persistedTime, e.getValue().valueLength))
+                .sorted(Comparator.comparingLong(StoredEntry::getPersistedTime))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        compactionExecutorService.shutdown();
+        try {
+            compactionExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segmentsLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] segmentFiles = rootDirectory.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX));
+        if (segmentFiles == null) {
+            return;
+        }
+        Arrays.sort(segmentFiles, Comparator.comparingLong(SegmentLogStorage::segmentIdOf));
+        for (File segmentFile : segmentFiles) {
+            Segment segment = new Segment(segmentIdOf(segmentFile), segmentFile, FileChannel.open(segmentFile.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segment.size = segment.channel.size();
+            segments.put(segment.id, segment);
+            long offset = 0;
+            while (offset < segment.size) {
+                Record record = readRecord(segment.channel, offset, segment.size);
+                if (record == null) {
+                    LOGGER.warn("Segment file=" + segmentFile.getAbsolutePath() + " is corrupted at offset=" + offset +
+                            ", the rest of it is ignored");
+                    segment.deadBytes.addAndGet(segment.size - offset);
+                    break;
+                }
+                Location previous;
+                if (record.value == null) {
+                    previous = locations.remove(record.id);
+                    segment.deadBytes.addAndGet(record.length);
+                } else {
+                    previous = locations.put(record.id, new Location(segment.id, offset, record.length,
+                            record.id.getBytes(StandardCharsets.UTF_8).length, record.value.length, record.persistedTime));
+                }
+                if (previous != null) {
+                    segments.get(previous.segmentId).deadBytes.addAndGet(previous.recordLength);
+                }
+                offset += record.length;
+            }
+        }
+    }
+
+    private ByteBuffer read(Location location) throws IOException {
+        Segment segment = segments.get(location.segmentId);
+        ByteBuffer mapping = mappingOf(segment);
+        if (mapping != null) {
+            ByteBuffer value = mapping.duplicate();
+            value.position((int) location.valuePosition());
+            value.limit((int) location.valuePosition() + location.valueLength);
+            return value.slice();
+        }
+        ByteBuffer value = ByteBuffer.allocate(location.valueLength);
+        readFully(segment.channel, value, location.valuePosition());
+        value.flip();
+        return value;
+    }
+
+    private Location append(String id, ByteBuffer value, long persistedTime) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? TOMBSTONE_LENGTH : value.remaining();
+        int recordLength = RECORD_HEADER_LENGTH + idBytes.length + Math.max(valueLength, 0);
+        ByteBuffer record = recordBuffer(recordLength);
+        record.putInt(0).putLong(persistedTime).putInt(idBytes.length).putInt(valueLength).put(idBytes);
+        if (value != null) {
+            record.put(value.duplicate());
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 4, recordLength - 4);
+        record.putInt(0, (int) checksum.getValue());
+        record.flip();
+
+        if (activeSegment.size > 0 && activeSegment.size + recordLength > segmentSize) {
+            Segment sealedSegment = activeSegment;
+            activeSegment = openSegment(sealedSegment.id + 1);
+            scheduleCompactionIfNeeded(sealedSegment);
+        }
+        Segment segment = activeSegment;
+        long offset = segment.size;
+        writeFully(segment.channel, record, offset);
+        segment.size = offset + recordLength;
+        return new Location(segment.id, offset, recordLength, idBytes.length, valueLength, persistedTime);
+    }
+
+    /**
+     * @return The buffer which is reused by all appends, they are serialized by the append lock.
+     */
+    private ByteBuffer recordBuffer(int recordLength) {
+        if (appendBuffer.capacity() < recordLength || appendBuffer.capacity() > MAXIMUM_RETAINED_APPEND_BUFFER) {
+            appendBuffer = ByteBuffer.allocate(Math.max(recordLength, INITIAL_APPEND_BUFFER));
+        }
+        appendBuffer.clear();
+        appendBuffer.limit(recordLength);
+        return appendBuffer;
+    }
+
+    private void markDead(Location location) {
+        Segment segment = segments.get(location.segmentId);
+        if (segment != null) {
+            segment.deadBytes.addAndGet(location.recordLength);
+            scheduleCompactionIfNeeded(segment);
+        }
+    }
+
+    private void scheduleCompactionIfNeeded(Segment segment) {
+        if (segment != activeSegment && segment.deadBytes.get() >= segment.size * compactionThreshold
+                && scheduledCompactions.add(segment.id)) {
+            compactionExecutorService.execute(() -> compact(segment));
+        }
+    }
+
+    private void compact(Segment segment) {
+        try {
+            LOGGER.trace("Compaction of segment file=" + segment.file.getAbsolutePath() + " has been started");
+            long offset = 0;
+            while (offset < segment.size) {
+                if (closed) {
+                    return;
+                }
+                Record record = readRecord(segment.channel, offset, segment.size);
+                if (record == null) {
+                    break;
+                }
+                synchronized (appendLock) {
+                    if (record.value == null) {
+                        // A deletion mark must outlive the older segments which may still hold the deleted entry
+                        if (segment.id != segments.firstKey() && !locations.containsKey(record.id)) {
+                            markDead(append(record.id, null, record.persistedTime));
+                        }
+                    } else {
+                        Location location = locations.get(record.id);
+                        if (location != null && location.segmentId == segment.id && location.offset == offset) {
+                            locations.put(record.id,
+                                    append(record.id, ByteBuffer.wrap(record.value), record.persistedTime));
+                        }
+                    }
+                }
+                offset += record.length;
+            }
+            segmentsLock.writeLock().lock();
+            try {
+                segments.remove(segment.id);
+                unmap(segment);
+                segment.channel.close();
+                Files.deleteIfExists(segment.file.toPath());
+            } finally {
+                segmentsLock.writeLock().unlock();
+            }
+            LOGGER.trace("Compaction of segment file=" + segment.file.getAbsolutePath() + " has been finished");
+        } catch (Exception e) {
+            LOGGER.error("Compaction of segment file=" + segment.file.getAbsolutePath() +
+                    " has interrupted by internal error", e);
+        } finally {
+            scheduledCompactions.remove(segment.id);
+        }
+    }
+
+    private ByteBuffer mappingOf(Segment segment) throws IOException {
+        if (maximumMappedBytes == 0 || segment == activeSegment || segment.size > maximumMappedBytes
+                || segment.size > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer mapping = segment.mapping;
+        if (mapping == null) {
+            mapping = map(segment);
+        }
+        segment.mappingReferenced = true;
+        return mapping;
+    }
+
+    /**
+     * Maps a sealed segment, segments which weren't read since the previous pass are unmapped to fit the budget.
+     */
+    private ByteBuffer map(Segment segment) throws IOException {
+        synchronized (mappedSegments) {
+            if (segment.mapping != null) {
+                return segment.mapping;
+            }
+            while (mappedBytes + segment.size > maximumMappedBytes) {
+                Segment eldest = mappedSegments.pollFirst();
+                if (eldest.mappingReferenced) {
+                    eldest.mappingReferenced = false;
+                    mappedSegments.addLast(eldest);
+                } else {
+                    eldest.mapping = null;
+                    mappedBytes -= eldest.size;
+                }
+            }
+            segment.mapping = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+            mappedSegments.addLast(segment);
+            mappedBytes += segment.size;
+            return segment.mapping;
+        }
+    }
+
+    private void unmap(Segment segment) {
+        synchronized (mappedSegments) {
+            if (segment.mapping != null && mappedSegments.remove(segment)) {
+                segment.mapping = null;
+                mappedBytes -= segment.size;
+            }
+        }
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        File file = new File(rootDirectory, String.format("%s%019d%s", SEGMENT_FILE_PREFIX, id, SEGMENT_FILE_SUFFIX));
+        Segment segment = new Segment(id, file, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segment.size = segment.channel.size();
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static Record readRecord(FileChannel channel, long offset, long limit) throws IOException {
+        if (limit - offset < RECORD_HEADER_LENGTH) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(channel, header, offset);
+        header.flip();
+        int storedChecksum = header.getInt();
+        long persistedTime = header.getLong();
+        int idLength = header.getInt();
+        int valueLength = header.getInt();
+        if (idLength < 0 || valueLength < TOMBSTONE_LENGTH
+                || offset + RECORD_HEADER_LENGTH + idLength + Math.max(valueLength, 0) > limit) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(idLength + Math.max(valueLength, 0));
+        readFully(channel, body, offset + RECORD_HEADER_LENGTH);
+        CRC32 checksum = new CRC32();
+        checksum.update(header.array(), 4, RECORD_HEADER_LENGTH - 4);
+        checksum.update(body.array(), 0, body.capacity());
+        if ((int) checksum.getValue() != storedChecksum) {
+            return null;
+        }
+        String id = new String(body.array(), 0, idLength, StandardCharsets.UTF_8);
+        byte[] value = valueLength == TOMBSTONE_LENGTH ? null
+                : Arrays.copyOfRange(body.array(), idLength, idLength + valueLength);
+        return new Record(id, value, persistedTime, RECORD_HEADER_LENGTH + body.capacity());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, current);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment at position=" + current);
+            }
+            current += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    private static long segmentIdOf(File segmentFile) {
+        String name = segmentFile.getName();
+        return Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicLong deadBytes = new AtomicLong();
+        private volatile long size;
+        private volatile ByteBuffer mapping;
+        private volatile boolean mappingReferenced;
+
+        private Segment(long id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Location {
+
+        private final long segmentId;
+        private final long offset;
+        private final int recordLength;
+        private final int idLength;
+        private final int valueLength;
+        private final long persistedTime;
+
+        private Location(long segmentId, long offset, int recordLength, int idLength, int valueLength,
+                         long persistedTime) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.idLength = idLength;
+            this.valueLength = valueLength;
+            this.persistedTime = persistedTime;
+        }
+
+        private long valuePosition() {
+            return offset + RECORD_HEADER_LENGTH + idLength;
+        }
+    }
+
+    private static final class Record {
+
+        private final String id;
+        private final byte[] value;
+        private final long persistedTime;
+        private final int length;
+
+        private Record(String id, byte[] value, long persistedTime, int length) {
+            this.id = id;
+            this.value = value;
+            this.persistedTime = persistedTime;
+            this.length = length;
+        }
+    }
+}
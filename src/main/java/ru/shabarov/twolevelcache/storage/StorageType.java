@@ -0,0 +1,17 @@
+package ru.shabarov.twolevelcache.storage;
+
+/**
+ * Layout of the persisted cache level on disk.
+ */
+public enum StorageType {
+
+    /**
+     * Every entry is persisted to its own file named after the key.
+     */
+    FILE_PER_KEY,
+
+    /**
+     * Entries are appended to large segment files, which are compacted in background.
+     */
+    SEGMENT_LOG
+}
@@ -0,0 +1,43 @@
+package ru.shabarov.twolevelcache.storage;
+
+/**
+ * Describes an entry found in a storage when it is opened.
+ */
+public final class StoredEntry {
+
+    private final String id;
+    private final long persistedTime;
+    private final long weight;
+
+    /**
+     * @param id            An identifier of the entry.
+     * @param persistedTime A moment in milliseconds when the entry was persisted.
+     * @param weight        A weight of the entry, storages report the size in bytes of the stored value.
+     */
+    public StoredEntry(String id, long persistedTime, long weight) {
+        this.id = id;
+        this.persistedTime = persistedTime;
+        this.weight = weight;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getPersistedTime() {
+        return persistedTime;
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "StoredEntry{" +
+                "id='" + id + '\'' +
+                ", persistedTime=" + persistedTime +
+                ", weight=" + weight +
+                '}';
+    }
+}
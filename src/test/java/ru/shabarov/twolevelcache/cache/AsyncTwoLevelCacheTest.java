@@ -0,0 +1,133 @@
+package ru.shabarov.twolevelcache.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncTwoLevelCacheTest {
+
+    private static final long CACHE_SIZE = 10L;
+
+    private final File PERSISTENCE_DIRECTORY_PATH = new File("asyncTempDir");
+    private final AtomicInteger executedTasks = new AtomicInteger();
+    private ExecutorService executorService;
+    private AsyncTwoLevelCache<String, String> cache;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(4);
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(CACHE_SIZE)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .buildAsync(task -> {
+                    executedTasks.incrementAndGet();
+                    executorService.execute(task);
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.synchronous().invalidateAll();
+        cache.close();
+        executorService.shutdown();
+        FileSystemUtils.deleteRecursively(PERSISTENCE_DIRECTORY_PATH);
+    }
+
+    @Test
+    public void testMemoryHitsCompleteInline() throws Exception {
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(CACHE_SIZE);
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.putAsync(keyValuePair.getKey(), keyValuePair.getValue()).get(1, TimeUnit.MINUTES);
+        }
+        executedTasks.set(0);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            CompletableFuture<String> value = cache.getAsync(keyValuePair.getKey());
+            assertTrue(value.isDone());
+            assertEquals(keyValuePair.getValue(), value.get());
+        }
+        assertEquals(0, executedTasks.get());
+    }
+
+    @Test
+    public void testLookupsAreCountedOnce() throws Exception {
+        AsyncTwoLevelCache<String, String> statsCache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(CACHE_SIZE)
+                .recordStats()
+                .persistenceDirectory(new File(PERSISTENCE_DIRECTORY_PATH, "stats"))
+                .buildAsync(executorService);
+        try {
+            statsCache.putAsync(KeyValuePair.makeKey(0), KeyValuePair.makeValue(0)).get(1, TimeUnit.MINUTES);
+
+            assertEquals(KeyValuePair.makeValue(0),
+                    statsCache.getAsync(KeyValuePair.makeKey(0)).get(1, TimeUnit.MINUTES));
+            assertNull(statsCache.getAsync(KeyValuePair.makeKey(1)).get(1, TimeUnit.MINUTES));
+            assertEquals(1, statsCache.getAllAsync(Arrays.asList(KeyValuePair.makeKey(0), KeyValuePair.makeKey(2)))
+                    .get(1, TimeUnit.MINUTES).size());
+
+            assertEquals(2, statsCache.synchronous().stats().hitCount());
+            assertEquals(2, statsCache.synchronous().stats().missCount());
+        } finally {
+            statsCache.synchronous().invalidateAll();
+            statsCache.close();
+        }
+    }
+
+    @Test
+    public void testPersistedValuesAreReadOnExecutor() throws Exception {
+        final long testSize = CACHE_SIZE * 2;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+        Map<String, String> values = new LinkedHashMap<>();
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            values.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+        cache.putAllAsync(values).get(1, TimeUnit.MINUTES);
+        executedTasks.set(0);
+
+        assertEquals(values, cache.getAllAsync(values.keySet()).get(1, TimeUnit.MINUTES));
+        assertEquals(1, executedTasks.get());
+
+        List<String> keys = new ArrayList<>(values.keySet());
+        for (String key : keys) {
+            assertEquals(values.get(key), cache.getAsync(key).get(1, TimeUnit.MINUTES));
+        }
+        assertNull(cache.getAsync(KeyValuePair.makeKey(testSize)).get(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void testLoaderRunsOnExecutor() throws Exception {
+        String key = KeyValuePair.makeKey(0);
+        String value = KeyValuePair.makeValue(0);
+
+        assertEquals(value, cache.getAsync(key, () -> value).get(1, TimeUnit.MINUTES));
+        assertEquals(1, executedTasks.get());
+        assertEquals(value, cache.getAsync(key, () -> "other").get(1, TimeUnit.MINUTES));
+        assertEquals(1, executedTasks.get());
+
+        IllegalStateException failure = new IllegalStateException("failed");
+        try {
+            cache.getAsync(KeyValuePair.makeKey(1), () -> {
+                throw failure;
+            }).get(1, TimeUnit.MINUTES);
+            fail("Loader failure is expected");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package ru.shabarov.twolevelcache.cache;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class PersistenceIndexTest {
+
+    @Test
+    public void testFifoEvictsEldestPersisted() {
+        PersistenceIndex index = new PersistenceIndex(DiskEvictionPolicy.FIFO, 0);
+        index.put("a", 1, 10);
+        index.put("b", 2, 20);
+        index.recordAccess("a");
+
+        assertEquals(Optional.of("a"), index.victim());
+        assertEquals(2, index.size());
+        assertEquals(30, index.totalWeight());
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() {
+        PersistenceIndex index = new PersistenceIndex(DiskEvictionPolicy.LRU, 0);
+        index.put("a", 1, 10);
+        index.put("b", 2, 20);
+        index.put("c", 3, 30);
+        index.recordAccess("a");
+
+        assertEquals(Optional.of("b"), index.victim());
+        index.remove("b");
+        assertEquals(Optional.of("c"), index.victim());
+        assertEquals(40, index.totalWeight());
+    }
+
+    @Test
+    public void testLfuEvictsLeastFrequentlyUsed() {
+        PersistenceIndex index = new PersistenceIndex(DiskEvictionPolicy.LFU, 16);
+        index.put("a", 1, 10);
+        index.put("b", 2, 20);
+        index.put("c", 3, 30);
+        for (int i = 0; i < 3; i++) {
+            index.recordAccess("a");
+            index.recordAccess("c");
+        }
+        index.recordAccess("b");
+
+        assertEquals(Optional.of("b"), index.victim());
+        index.remove("b");
+        assertEquals(Optional.of("a"), index.victim());
+    }
+
+    @Test
+    public void testTinyLfuAdmitsMoreFrequentCandidatesOnly() {
+        PersistenceIndex index = new PersistenceIndex(DiskEvictionPolicy.W_TINY_LFU, 16);
+        index.put("frequent", 1, 10);
+        for (int i = 0; i < 3; i++) {
+            index.recordAccess("frequent");
+        }
+        index.recordAccess("rare");
+
+        assertFalse(index.admits("rare", "frequent"));
+        for (int i = 0; i < 5; i++) {
+            index.recordAccess("rare");
+        }
+        assertTrue(index.admits("rare", "frequent"));
+        assertTrue(new PersistenceIndex(DiskEvictionPolicy.LRU, 0).admits("rare", "frequent"));
+    }
+
+    @Test
+    public void testFilterTellsDefiniteMisses() {
+        PersistenceIndex index = new PersistenceIndex(DiskEvictionPolicy.FIFO, 0);
+        for (int i = 0; i < 1000; i++) {
+            index.put("persisted" + i, i, 1);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            index.remove("persisted" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 1) {
+                assertTrue(index.mightContain("persisted" + i));
+            } else if (index.mightContain("persisted" + i)) {
+                falsePositives++;
+            }
+            if (index.mightContain("absent" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50);
+
+        index.clear();
+        assertFalse(index.mightContain("persisted1"));
+    }
+
+    @Test
+    public void testHitsAreCountedWithinWindow() {
+        PersistenceIndex index = new PersistenceIndex(DiskEvictionPolicy.FIFO, 0);
+        index.put("a", 1, 10);
+
+        assertFalse(index.recordHit("a", 100, 2, 50));
+        assertFalse(index.recordHit("a", 200, 2, 50));
+        assertTrue(index.recordHit("a", 220, 2, 50));
+        assertFalse(index.recordHit("missing", 220, 1, 50));
+
+        index.put("a", 2, 10);
+        assertFalse(index.recordHit("a", 230, 2, 50));
+    }
+}
@@ -1,26 +1,53 @@
 package ru.shabarov.twolevelcache.cache;
 
-import com.google.common.cache.Cache;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
 import org.junit.After;
 import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+import ru.shabarov.twolevelcache.serialization.BufferOutput;
+import ru.shabarov.twolevelcache.serialization.Compression;
+import ru.shabarov.twolevelcache.serialization.StringSerializer;
+import ru.shabarov.twolevelcache.stats.TwoLevelCacheStats;
+import ru.shabarov.twolevelcache.storage.StorageType;
 
+import javax.management.ObjectName;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
 public class TwoLevelCacheTest {
 
-    private Cache<String, String> cache;
+    private TwoLevelCache<String, String> cache;
     private final String PERSISTENCE_DIRACTORY_NAME = "tempDir";
     private final File PERSISTENCE_DIRECTORY_PATH = new File(PERSISTENCE_DIRACTORY_NAME);
 
     @After
     public void tearDown() throws Exception {
         cache.invalidateAll();
+        cache.close();
+        FileSystemUtils.deleteRecursively(PERSISTENCE_DIRECTORY_PATH);
     }
 
     @Test
@@ -76,6 +103,605 @@ public class TwoLevelCacheTest {
         }
     }
 
+    @Test
+    public void testMaximumSizeStrategyWithSegmentLogStorage() throws Exception {
+
+        final long cacheSize = 10L;
+        final long overflowObjectNum = 3;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .persistanceMaximumSize(cacheSize)
+                .storage(StorageType.SEGMENT_LOG)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 2 + overflowObjectNum;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        assertEquals(cacheSize * 2, cache.size());
+
+        for (int i = 0; i < overflowObjectNum; i++) {
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(i)));
+        }
+        for (long i = overflowObjectNum; i < testSize; i++) {
+            assertEquals(KeyValuePair.makeValue(i), cache.getIfPresent(KeyValuePair.makeKey(i)));
+        }
+    }
+
+    @Test
+    public void testMaximumSizeStrategyWithStringSerializer() throws Exception {
+
+        final long cacheSize = 10L;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .persistanceMaximumSize(cacheSize)
+                .serializer(new StringSerializer())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 2;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        assertEquals(testSize, cache.size());
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            assertEquals(keyValuePair.getValue(), cache.getIfPresent(keyValuePair.getKey()));
+        }
+    }
+
+    @Test
+    public void testMaximumBytesStrategyWithDiskWeigher() throws Exception {
+
+        final long cacheSize = 10L;
+        final int entryWeight = 100;
+        final long persistedEntries = 5L;
+        final String heavyKey = "heavyKey";
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(cacheSize)
+                .persistenceMaximumBytes(entryWeight * persistedEntries)
+                .diskWeigher((String key, String value) -> key.equals(heavyKey) ? entryWeight * 10 : entryWeight)
+                .recordStats()
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        cache.put(heavyKey, "heavyValue");
+        final long testSize = cacheSize * 2;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        assertEquals(cacheSize + persistedEntries, cache.size());
+        TwoLevelCacheStats stats = cache.twoLevelStats();
+        assertEquals(entryWeight * persistedEntries, stats.persistedWeight());
+        assertEquals(cacheSize - persistedEntries, stats.persistedEvictionCount());
+        assertNull(cache.getIfPresent(heavyKey));
+        for (int i = 0; i < testSize; i++) {
+            String valueFromCache = cache.getIfPresent(KeyValuePair.makeKey(i));
+            if (i < cacheSize - persistedEntries) {
+                assertNull(valueFromCache);
+            } else {
+                assertEquals(KeyValuePair.makeValue(i), valueFromCache);
+            }
+        }
+    }
+
+    @Test
+    public void testMaximumBytesStrategyWithSerializedSize() throws Exception {
+
+        final long cacheSize = 10L;
+        final long maximumBytes = 256L;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .persistenceMaximumBytes(maximumBytes)
+                .serializer(new StringSerializer())
+                .recordStats()
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 10;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        TwoLevelCacheStats stats = cache.twoLevelStats();
+        assertTrue(stats.persistedWeight() > 0);
+        assertTrue(stats.persistedWeight() <= maximumBytes);
+        assertTrue(stats.persistedEvictionCount() > 0);
+        assertEquals(cacheSize + stats.persistedEntryCount(), cache.size());
+    }
+
+    @Test
+    public void testDroppedBatchEntryDeletesStalePersistedCopy() throws Exception {
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(1)
+                .persistenceMaximumBytes(100)
+                .diskWeigher((String key, String value) -> value.length())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        cache.put("a", Strings.repeat("1", 10));
+        cache.put("b", "b");
+        assertNull(cache.getIfPresentInMemory("a"));
+
+        cache.put("a", Strings.repeat("2", 95));
+        Map<String, String> batch = new LinkedHashMap<>();
+        batch.put("n1", Strings.repeat("n", 50));
+        batch.put("n2", Strings.repeat("n", 37));
+        batch.put("n3", "n");
+        cache.putAll(batch);
+
+        assertNotEquals(Strings.repeat("1", 10), cache.getIfPresent("a"));
+    }
+
+    @Test
+    public void testCompressedPersisting() throws Exception {
+
+        final long cacheSize = 10L;
+        final int repeats = 50;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .serializer(new StringSerializer())
+                .compression(Compression.SNAPPY, 64)
+                .storage(StorageType.SEGMENT_LOG)
+                .recordStats()
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 3;
+        Map<String, String> values = new LinkedHashMap<>();
+        for (long i = 0; i < testSize; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = 0; j < repeats; j++) {
+                value.append(KeyValuePair.makeValue(i));
+            }
+            values.put(KeyValuePair.makeKey(i), value.toString());
+        }
+        cache.putAll(values);
+        cache.put("smallKey", "small");
+
+        TwoLevelCacheStats stats = cache.twoLevelStats();
+        assertTrue(stats.persistedCompressedBytes() > 0);
+        assertTrue(stats.compressionRatio() < 0.5);
+        assertTrue(stats.persistedWrittenBytes() < stats.persistedUncompressedBytes());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            assertEquals(value.getValue(), cache.getIfPresent(value.getKey()));
+        }
+        assertEquals("small", cache.getIfPresent("smallKey"));
+    }
+
+    @Test
+    public void testOffHeapTierWithOverflow() throws Exception {
+
+        final long cacheSize = 10L;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .offHeapMaximumBytes(512)
+                .serializer(new StringSerializer())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 10;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        assertEquals(testSize, cache.size());
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            assertEquals(keyValuePair.getValue(), cache.getIfPresent(keyValuePair.getKey()));
+        }
+
+        cache.close();
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .serializer(new StringSerializer())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        assertEquals(testSize - cacheSize, cache.size());
+    }
+
+    @Test
+    public void testOffHeapValueReplacesPersistedFile() throws Exception {
+
+        final int fillerEntries = 200;
+
+        TwoLevelCache<String, String> crashedCache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(1)
+                .offHeapMaximumBytes(512)
+                .serializer(new StringSerializer())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+        cache = crashedCache;
+
+        crashedCache.put("a", "v1");
+        for (int i = 0; i < fillerEntries; i++) {
+            crashedCache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+        }
+        crashedCache.put("a", "v2");
+        crashedCache.put("b", "b");
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(1)
+                .serializer(new StringSerializer())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+        try {
+            assertNotEquals("v1", cache.getIfPresent("a"));
+        } finally {
+            crashedCache.close();
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+
+        final long cacheSize = 10L;
+        final int preloadedEntries = 5;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .recoverOnStart(true)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 3;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+        cache.close();
+        Files.write(new File(PERSISTENCE_DIRECTORY_PATH, "corrupt").toPath(), new byte[]{1, 2, 3});
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .recoverOnStart(true)
+                .preloadOnStart(preloadedEntries)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        assertEquals(testSize, cache.size());
+        assertEquals(testSize - preloadedEntries, cache.sizeOfPersisted());
+        assertNull(cache.getIfPresent("corrupt"));
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            assertEquals(keyValuePair.getValue(), cache.getIfPresent(keyValuePair.getKey()));
+        }
+    }
+
+    @Test
+    public void testShardedPersistence() throws Exception {
+
+        final long cacheSize = 10L;
+        final int shards = 3;
+
+        List<File> directories = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            directories.add(new File(PERSISTENCE_DIRECTORY_PATH, "shard" + i));
+        }
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .persistanceMaximumSize(cacheSize * shards)
+                .recoverOnStart(true)
+                .persistenceDirectories(directories)
+                .build();
+
+        final long testSize = cacheSize * 4;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        long storedFiles = 0;
+        for (File directory : directories) {
+            long shardFiles = countStoredFiles(directory);
+            assertTrue(shardFiles > 0);
+            assertTrue(shardFiles <= cacheSize);
+            storedFiles += shardFiles;
+        }
+        assertEquals(cache.sizeOfPersisted(), storedFiles);
+        cache.close();
+
+        directories.add(new File(PERSISTENCE_DIRECTORY_PATH, "shard" + shards));
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize * 4)
+                .persistanceMaximumSize(cacheSize * (shards + 1))
+                .recoverOnStart(true)
+                .persistenceDirectories(directories)
+                .build();
+
+        assertTrue(cache.sizeOfPersisted() > 0);
+        assertTrue(cache.sizeOfPersisted() < storedFiles + cacheSize);
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            String valueFromCache = cache.getIfPresent(keyValuePair.getKey());
+            assertTrue(valueFromCache == null || valueFromCache.equals(keyValuePair.getValue()));
+        }
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+
+        final long cacheSize = 10L;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .registerMBean("testStatistics")
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 2;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            assertEquals(keyValuePair.getValue(), cache.getIfPresent(keyValuePair.getKey()));
+        }
+        assertNull(cache.getIfPresent(KeyValuePair.makeKey(testSize)));
+
+        TwoLevelCacheStats stats = cache.twoLevelStats();
+        assertTrue(stats.persistedHitCount() > 0);
+        assertEquals(1, stats.persistedMissCount());
+        assertEquals(stats.persistedHitCount() + stats.persistedMissCount(), stats.findLatency().count());
+        assertTrue(stats.persistedWriteCount() >= testSize - cacheSize);
+        assertTrue(stats.persistedWrittenBytes() > 0);
+        assertEquals(stats.persistedWriteCount(), stats.persistLatency().count());
+        assertEquals(testSize, stats.memoryHitCount() + stats.persistedHitCount());
+        assertEquals(1, stats.filterNegativeCount() + stats.filterFalsePositiveCount());
+
+        ObjectName objectName = new ObjectName("ru.shabarov.twolevelcache:type=TwoLevelCache,name=\"testStatistics\"");
+        assertEquals(stats.persistedHitCount(),
+                ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "PersistedHitCount"));
+        assertEquals(stats.filterFalsePositiveRate(),
+                ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "FilterFalsePositiveRate"));
+    }
+
+    @Test
+    public void testConcurrentLookupsAreCoalesced() throws Exception {
+
+        final int cacheSize = 16;
+        final int threads = 32;
+        final AtomicInteger deserializations = new AtomicInteger();
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(cacheSize)
+                .serializer(new StringSerializer() {
+                    @Override
+                    public String deserialize(Object key, ByteBuffer input) {
+                        deserializations.incrementAndGet();
+                        return super.deserialize(key, input);
+                    }
+                })
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(cacheSize * 2);
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+        List<KeyValuePair> persistedPairs = keyValuePairs.subList(0, cacheSize);
+        List<String> persistedKeys = new ArrayList<>();
+        for (KeyValuePair keyValuePair : persistedPairs) {
+            persistedKeys.add(keyValuePair.getKey());
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Map<String, String>>> lookups = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            lookups.add(executorService.submit(() -> {
+                start.await();
+                return cache.getAllPresent(persistedKeys);
+            }));
+        }
+        start.countDown();
+        for (Future<Map<String, String>> lookup : lookups) {
+            Map<String, String> values = lookup.get(1, TimeUnit.MINUTES);
+            for (KeyValuePair keyValuePair : persistedPairs) {
+                assertEquals(keyValuePair.getValue(), values.get(keyValuePair.getKey()));
+            }
+        }
+        executorService.shutdown();
+
+        assertEquals(cacheSize, deserializations.get());
+    }
+
+    @Test
+    public void testConcurrentPersistingEvictionAndExpiry() throws Exception {
+
+        final long cacheSize = 8L;
+        final long persistenceSize = 32L;
+        final long keySpace = 128L;
+        final int threads = 32;
+        final int operations = 500;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .persistanceMaximumSize(persistenceSize)
+                .expireAfterWrite(50, TimeUnit.MILLISECONDS)
+                .expirySweepInterval(5, TimeUnit.MILLISECONDS)
+                .diskEvictionPolicy(DiskEvictionPolicy.LRU)
+                .serializer(new StringSerializer())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers.add(executorService.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                for (int i = 0; i < operations; i++) {
+                    long index = random.nextInt((int) keySpace);
+                    String key = KeyValuePair.makeKey(index);
+                    int operation = random.nextInt(10);
+                    if (operation < 5) {
+                        cache.put(key, KeyValuePair.makeValue(index));
+                    } else if (operation < 9) {
+                        String value = cache.getIfPresent(key);
+                        assertTrue(value == null || value.equals(KeyValuePair.makeValue(index)));
+                    } else {
+                        cache.invalidate(key);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(1, TimeUnit.MINUTES);
+        }
+        executorService.shutdown();
+
+        assertTrue(cache.sizeOfPersisted() <= persistenceSize);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (cache.sizeOfPersisted() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.sizeOfPersisted());
+        assertEquals(0, countStoredFiles(PERSISTENCE_DIRECTORY_PATH));
+    }
+
+    private static long countStoredFiles(File directory) throws Exception {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .count();
+        }
+    }
+
+    @Test
+    public void testWriteBehindPersisting() throws Exception {
+
+        final long cacheSize = 5L;
+        final int writeBehindCapacity = 4;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .writeBehind(writeBehindCapacity, BackpressurePolicy.BLOCK)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 4;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            assertEquals(keyValuePair.getValue(), cache.getIfPresent(keyValuePair.getKey()));
+        }
+
+        cache.invalidate(KeyValuePair.makeKey(0));
+        assertNull(cache.getIfPresent(KeyValuePair.makeKey(0)));
+    }
+
+    @Test
+    public void testDroppedWriteBehindEntryDeletesStalePersistedCopy() throws Exception {
+
+        final CountDownLatch writerBlocked = new CountDownLatch(1);
+        final CountDownLatch writerReleased = new CountDownLatch(1);
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(1)
+                .writeBehind(1, BackpressurePolicy.DROP)
+                .serializer(new StringSerializer() {
+                    @Override
+                    public void serialize(Object key, String value, BufferOutput output) {
+                        if ("blocker".equals(value)) {
+                            writerBlocked.countDown();
+                            try {
+                                writerReleased.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        super.serialize(key, value, output);
+                    }
+                })
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        try {
+            cache.put("key", "v1");
+            cache.put("blocking", "blocker");
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while ((countStoredFiles(PERSISTENCE_DIRECTORY_PATH) < 1 || cache.sizeOfPersisted() > 1) &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, countStoredFiles(PERSISTENCE_DIRECTORY_PATH));
+            assertEquals(1, cache.sizeOfPersisted());
+
+            cache.put("other", "value");
+            assertTrue(writerBlocked.await(5, TimeUnit.SECONDS));
+            cache.put("key", "v2");
+            cache.put("another", "value");
+
+            assertNull(cache.getIfPresentInMemory("key"));
+            assertNull(cache.getIfPresent("key"));
+        } finally {
+            writerReleased.countDown();
+        }
+    }
+
+    @Test
+    public void testInvalidateNotifiesPersistedValueWithoutLookup() throws Exception {
+
+        final List<String> removedValues = new ArrayList<>();
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(1)
+                .recordStats()
+                .removalListener((RemovalListener<String, String>) notification -> {
+                    if (notification.getCause() == RemovalCause.EXPLICIT) {
+                        removedValues.add(notification.getValue());
+                    }
+                })
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        cache.put("a", "a");
+        cache.put("b", "b");
+        assertNull(cache.getIfPresentInMemory("a"));
+
+        cache.invalidate("a");
+
+        assertEquals(Collections.singletonList("a"), removedValues);
+        assertEquals(0, cache.sizeOfPersisted());
+        TwoLevelCacheStats stats = cache.twoLevelStats();
+        assertEquals(0, stats.persistedHitCount());
+        assertEquals(0, stats.persistedMissCount());
+    }
+
     @Test
     public void testManualInvalidate() throws Exception {
 
@@ -109,6 +735,39 @@ public class TwoLevelCacheTest {
         assertEquals(cache.size(), 0);
     }
 
+    @Test
+    public void testBulkOperations() throws Exception {
+
+        final long cacheSize = 10L;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .persistanceMaximumSize(cacheSize)
+                .storage(StorageType.SEGMENT_LOG)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 2;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            entries.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        cache.putAll(entries);
+        assertEquals(testSize, cache.size());
+
+        List<String> keys = new ArrayList<>(entries.keySet());
+        keys.add(KeyValuePair.makeKey(testSize));
+        assertEquals(entries, cache.getAllPresent(keys));
+        assertEquals(testSize, cache.size());
+
+        List<String> invalidatedKeys = keys.subList(0, (int) cacheSize);
+        cache.invalidateAll(invalidatedKeys);
+        assertEquals(testSize - cacheSize, cache.size());
+        assertTrue(cache.getAllPresent(invalidatedKeys).isEmpty());
+    }
+
     @Test
     public void testTimeExpirationStrategy() throws Exception {
 
@@ -142,6 +801,101 @@ public class TwoLevelCacheTest {
         assertEquals(0, cache.size());
     }
 
+    @Test
+    public void testSizeAndTimeEvictionStrategiesTogether() throws Exception {
+
+        final long cacheSize = 5L;
+        final long expirationTime = 500;
+        final long overflowObjectNum = 3;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .persistanceMaximumSize(cacheSize)
+                .expireAfterWrite(expirationTime, TimeUnit.MILLISECONDS)
+                .expirySweepInterval(expirationTime / 5, TimeUnit.MILLISECONDS)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 2 + overflowObjectNum;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        assertEquals(cacheSize * 2, cache.size());
+        for (int i = 0; i < overflowObjectNum; i++) {
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(i)));
+        }
+
+        Thread.sleep(expirationTime * 2);
+        cache.cleanUp();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTinyLfuAdmissionKeepsFrequentEntries() throws Exception {
+
+        final long persistenceSize = 3L;
+        final int lookups = 3;
+        final long oneHitWonders = 10;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(1)
+                .persistanceMaximumSize(persistenceSize)
+                .diskEvictionPolicy(DiskEvictionPolicy.W_TINY_LFU)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        List<KeyValuePair> frequentPairs = KeyValuePair.makeTestElements(persistenceSize);
+        for (int i = 0; i < lookups; i++) {
+            for (KeyValuePair frequentPair : frequentPairs) {
+                assertNull(cache.getIfPresent(frequentPair.getKey()));
+            }
+        }
+        for (KeyValuePair frequentPair : frequentPairs) {
+            cache.put(frequentPair.getKey(), frequentPair.getValue());
+        }
+        for (long i = persistenceSize; i < persistenceSize + oneHitWonders; i++) {
+            cache.put(KeyValuePair.makeKey(i), KeyValuePair.makeValue(i));
+        }
+
+        for (long i = persistenceSize; i < persistenceSize + oneHitWonders - 1; i++) {
+            assertNull(cache.getIfPresent(KeyValuePair.makeKey(i)));
+        }
+        for (KeyValuePair frequentPair : frequentPairs) {
+            assertEquals(frequentPair.getValue(), cache.getIfPresent(frequentPair.getKey()));
+        }
+    }
+
+    @Test
+    public void testTimeExpirationSweepWithoutLookups() throws Exception {
+
+        final long cacheSize = 5L;
+        final long expirationTime = 200;
+        final long sweepInterval = 50;
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(cacheSize)
+                .expireAfterWrite(expirationTime, TimeUnit.MILLISECONDS)
+                .expirySweepInterval(sweepInterval, TimeUnit.MILLISECONDS)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        final long testSize = cacheSize * 2;
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(testSize);
+
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+
+        assertEquals(testSize, cache.size());
+
+        Thread.sleep(expirationTime + sweepInterval * 4);
+        cache.cleanUp();
+        assertEquals(0, cache.size());
+    }
+
     @Test
     public void testAddByCallable() throws Exception {
 
@@ -170,4 +924,248 @@ public class TwoLevelCacheTest {
         assertNotNull(value0);
         assertEquals(value0, callableReturnValue);
     }
+
+    @Test
+    public void testRefreshAheadServesStaleValueWhileReloading() throws Exception {
+
+        final long refreshTime = 200;
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch reloadReleased = new CountDownLatch(1);
+
+        LoadingTwoLevelCache<String, String> loadingCache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(10)
+                .refreshAfterWrite(refreshTime, TimeUnit.MILLISECONDS)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build(blockingReloadLoader(loads, reloadReleased));
+        cache = loadingCache;
+
+        try {
+            TwoLevelCacheBuilder.newBuilder().refreshAfterWrite(refreshTime, TimeUnit.MILLISECONDS).build();
+            fail("Refresh after write must require a cache loader");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("cache loader"));
+        }
+
+        assertEquals("a1", loadingCache.get("a"));
+        Thread.sleep(refreshTime + 100);
+        assertEquals("a1", loadingCache.get("a"));
+        assertEquals("a1", loadingCache.getUnchecked("a"));
+        assertEquals("a1", loadingCache.getIfPresent("a"));
+
+        reloadReleased.countDown();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!"a2".equals(loadingCache.getIfPresent("a")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("a2", loadingCache.getIfPresent("a"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testRefreshRewritesPersistedValueInPlace() throws Exception {
+
+        final long refreshTime = 200;
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch reloadReleased = new CountDownLatch(1);
+
+        LoadingTwoLevelCache<String, String> loadingCache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(1)
+                .persistanceMaximumSize(10)
+                .refreshAfterWrite(refreshTime, TimeUnit.MILLISECONDS)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build(blockingReloadLoader(loads, reloadReleased));
+        cache = loadingCache;
+
+        assertEquals("a1", loadingCache.get("a"));
+        Thread.sleep(refreshTime + 100);
+        assertEquals("a1", loadingCache.get("a"));
+        loadingCache.put("b", "b");
+        assertNull(loadingCache.getIfPresentInMemory("a"));
+        assertEquals(1, loadingCache.sizeOfPersisted());
+
+        reloadReleased.countDown();
+        loadingCache.close();
+        assertEquals(2, loads.get());
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(1)
+                .persistanceMaximumSize(10)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+        assertEquals("a2", cache.getIfPresent("a"));
+    }
+
+    @Test
+    public void testRefreshReplacesStagedValue() throws Exception {
+
+        final long refreshTime = 200;
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch writerBlocked = new CountDownLatch(1);
+        final CountDownLatch writerReleased = new CountDownLatch(1);
+
+        LoadingTwoLevelCache<String, String> loadingCache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(1)
+                .writeBehind(4, BackpressurePolicy.BLOCK)
+                .promotionPolicy(PromotionPolicy.never())
+                .refreshAfterWrite(refreshTime, TimeUnit.MILLISECONDS)
+                .serializer(new StringSerializer() {
+                    @Override
+                    public void serialize(Object key, String value, BufferOutput output) {
+                        if ("blocker".equals(value)) {
+                            writerBlocked.countDown();
+                            try {
+                                writerReleased.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        super.serialize(key, value, output);
+                    }
+                })
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build(blockingReloadLoader(loads, new CountDownLatch(0)));
+        cache = loadingCache;
+
+        try {
+            loadingCache.put("blocking", "blocker");
+            loadingCache.put("x", "x");
+            assertTrue(writerBlocked.await(5, TimeUnit.SECONDS));
+
+            assertEquals("a1", loadingCache.get("a"));
+            Thread.sleep(refreshTime + 100);
+            loadingCache.put("b", "b");
+            assertNull(loadingCache.getIfPresentInMemory("a"));
+            assertEquals("a1", loadingCache.getIfPresent("a"));
+
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (!"a2".equals(loadingCache.getIfPresent("a")) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("a2", loadingCache.getIfPresent("a"));
+            assertEquals(2, loads.get());
+        } finally {
+            writerReleased.countDown();
+        }
+    }
+
+    @Test
+    public void testGetAllLoadsMissingValuesInBulk() throws Exception {
+
+        final List<List<String>> bulkLoads = new ArrayList<>();
+
+        LoadingTwoLevelCache<String, String> loadingCache = TwoLevelCacheBuilder.newBuilder()
+                .memoryMaximumSize(10)
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build(new CacheLoader<String, String>() {
+                    @Override
+                    public String load(String key) {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public Map<String, String> loadAll(Iterable<? extends String> keys) {
+                        List<String> loadedKeys = new ArrayList<>();
+                        Map<String, String> values = new LinkedHashMap<>();
+                        for (String key : keys) {
+                            loadedKeys.add(key);
+                            values.put(key, key + "1");
+                        }
+                        bulkLoads.add(loadedKeys);
+                        return values;
+                    }
+                });
+        cache = loadingCache;
+
+        loadingCache.put("a", "a0");
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("a", "a0");
+        expected.put("b", "b1");
+        expected.put("c", "c1");
+        assertEquals(expected, loadingCache.getAll(Arrays.asList("a", "b", "c", "b")));
+        assertEquals(Collections.singletonList(Arrays.asList("b", "c")), bulkLoads);
+        assertEquals("c1", loadingCache.getIfPresent("c"));
+    }
+
+    @Test
+    public void testNeverPromotedEntriesAreServedFromDisk() throws Exception {
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(2)
+                .persistanceMaximumSize(10)
+                .promotionPolicy(PromotionPolicy.never())
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(4);
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+        }
+        assertEquals(2, cache.sizeOfPersisted());
+
+        for (int i = 0; i < 3; i++) {
+            for (KeyValuePair keyValuePair : keyValuePairs) {
+                assertEquals(keyValuePair.getValue(), cache.getIfPresent(keyValuePair.getKey()));
+                assertEquals(keyValuePair.getValue(), cache.get(keyValuePair.getKey(), () -> "loaded"));
+            }
+        }
+        assertNull(cache.getIfPresentInMemory(keyValuePairs.get(0).getKey()));
+        assertNull(cache.getIfPresentInMemory(keyValuePairs.get(1).getKey()));
+        assertNotNull(cache.getIfPresentInMemory(keyValuePairs.get(2).getKey()));
+        assertNotNull(cache.getIfPresentInMemory(keyValuePairs.get(3).getKey()));
+        assertEquals(2, cache.sizeOfPersisted());
+    }
+
+    @Test
+    public void testPromotionAfterHitsIgnoresScans() throws Exception {
+
+        cache = TwoLevelCacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .memoryMaximumSize(2)
+                .persistanceMaximumSize(10)
+                .promotionPolicy(PromotionPolicy.afterHits(2, 1, TimeUnit.MINUTES))
+                .persistenceDirectory(PERSISTENCE_DIRECTORY_PATH)
+                .build();
+
+        List<KeyValuePair> keyValuePairs = KeyValuePair.makeTestElements(4);
+        List<String> keys = new ArrayList<>();
+        for (KeyValuePair keyValuePair : keyValuePairs) {
+            cache.put(keyValuePair.getKey(), keyValuePair.getValue());
+            keys.add(keyValuePair.getKey());
+        }
+        String persistedKey = keyValuePairs.get(0).getKey();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(4, cache.getAllPresent(keys).size());
+            int traversed = 0;
+            for (Map.Entry<String, String> entry : cache.asMap().entrySet()) {
+                assertNotEquals(persistedKey, entry.getKey());
+                traversed++;
+            }
+            assertEquals(2, traversed);
+        }
+        assertEquals(2, cache.sizeOfPersisted());
+
+        assertEquals(keyValuePairs.get(0).getValue(), cache.getIfPresent(persistedKey));
+        assertNull(cache.getIfPresentInMemory(persistedKey));
+        assertEquals(keyValuePairs.get(0).getValue(), cache.getIfPresent(persistedKey));
+        assertEquals(keyValuePairs.get(0).getValue(), cache.getIfPresentInMemory(persistedKey));
+        assertEquals(2, cache.sizeOfPersisted());
+    }
+
+    /**
+     * @return A loader of values suffixed by the number of loads, whose reloads wait for the given latch.
+     */
+    private static CacheLoader<String, String> blockingReloadLoader(AtomicInteger loads, CountDownLatch reloadReleased) {
+        return new CacheLoader<String, String>() {
+            @Override
+            public String load(String key) throws Exception {
+                if (loads.get() > 0) {
+                    reloadReleased.await();
+                }
+                return key + loads.incrementAndGet();
+            }
+        };
+    }
 }
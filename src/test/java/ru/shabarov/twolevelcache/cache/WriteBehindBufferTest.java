@@ -0,0 +1,43 @@
+package ru.shabarov.twolevelcache.cache;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindBufferTest {
+
+    @Test
+    public void testEntryStagedWhileWrittenIsCountedOnce() throws Exception {
+        WriteBehindBuffer<String, String> buffer = new WriteBehindBuffer<>(1);
+        assertTrue(buffer.offer("a", "v1", false));
+        assertEquals(Collections.singletonMap("a", "v1"), buffer.drain(10, 0, TimeUnit.MILLISECONDS));
+
+        assertTrue(buffer.offer("a", "v2", false));
+        assertEquals(1, buffer.size());
+        assertFalse(buffer.offer("b", "b", false));
+
+        assertTrue(buffer.complete("a", "v1"));
+        assertEquals(1, buffer.size());
+        assertEquals("v2", buffer.get("a"));
+        assertEquals(Collections.singletonMap("a", "v2"), buffer.drain(10, 0, TimeUnit.MILLISECONDS));
+        assertTrue(buffer.complete("a", "v2"));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testRemovedEntryIsNotCompleted() throws Exception {
+        WriteBehindBuffer<String, String> buffer = new WriteBehindBuffer<>(2);
+        assertTrue(buffer.offer("a", "v1", false));
+        buffer.drain(10, 0, TimeUnit.MILLISECONDS);
+        assertTrue(buffer.offer("a", "v2", false));
+
+        buffer.remove("a");
+
+        assertFalse(buffer.complete("a", "v1"));
+        assertEquals(0, buffer.size());
+        assertNull(buffer.get("a"));
+    }
+}
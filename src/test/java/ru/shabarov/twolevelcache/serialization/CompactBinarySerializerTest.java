@@ -0,0 +1,111 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CompactBinarySerializerTest {
+
+    private final CompactBinarySerializer serializer = new CompactBinarySerializer();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, Object> value = new HashMap<>();
+        value.put("string", "\u0437\u043d\u0430\u0447\u0435\u043d\u0438\u0435 \ud83d\ude00");
+        value.put("int", -42);
+        value.put("long", Long.MAX_VALUE);
+        value.put("double", 0.5d);
+        value.put("float", 1.5f);
+        value.put("short", (short) -3);
+        value.put("byte", (byte) 7);
+        value.put("char", '\u044e');
+        value.put("boolean", true);
+        value.put("null", null);
+        value.put("list", Arrays.asList(1, "two", 3L));
+        value.put("set", new LinkedHashSet<>(Arrays.asList("a", "b")));
+        value.put("serializable", new BigDecimal("12.345"));
+
+        Object deserialized = serializer.deserialize(null, serialize(serializer, value));
+
+        assertEquals(value, deserialized);
+    }
+
+    @Test
+    public void testCollectionTypesAreKept() throws Exception {
+        Map<String, Integer> sortedMap = new TreeMap<>();
+        sortedMap.put("b", 2);
+        sortedMap.put("a", 1);
+        Set<TimeUnit> enumSet = EnumSet.of(TimeUnit.SECONDS, TimeUnit.DAYS);
+        List<String> linkedList = new LinkedList<>(Arrays.asList("a", "b"));
+        Map<String, Integer> hashMap = new HashMap<>(sortedMap);
+
+        for (Object value : Arrays.asList(sortedMap, enumSet, linkedList, new ArrayList<>(linkedList))) {
+            Object deserialized = serializer.deserialize(null, serialize(serializer, value));
+
+            assertEquals(value, deserialized);
+            assertSame(value.getClass(), deserialized.getClass());
+        }
+        assertTrue(serializer.deserialize(null, serialize(serializer, hashMap)) instanceof HashMap);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNonSerializableCollectionIsRejected() throws Exception {
+        serialize(serializer, new HashMap<>(Collections.singletonMap("a", 1)).keySet());
+    }
+
+    @Test
+    public void testByteArrayRoundTrip() throws Exception {
+        byte[] value = {1, 2, 3};
+
+        Object deserialized = serializer.deserialize(null, serialize(serializer, value));
+
+        assertArrayEquals(value, (byte[]) deserialized);
+    }
+
+    @Test
+    public void testDirectBufferRoundTrip() throws Exception {
+        String value = "value in a direct buffer";
+        ByteBuffer heap = serialize(serializer, value);
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+        direct.put(heap).flip();
+
+        assertEquals(value, serializer.deserialize(null, direct));
+    }
+
+    @Test
+    public void testMoreCompactThanJavaSerialization() throws Exception {
+        Map<String, Object> value = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            value.put("key" + i, i);
+        }
+
+        int compactSize = serialize(serializer, value).remaining();
+        int javaSize = serialize(new JavaSerializer(), value).remaining();
+
+        assertTrue(compactSize * 2 < javaSize);
+    }
+
+    private static <V> ByteBuffer serialize(Serializer<Object, V> serializer, V value) throws Exception {
+        BufferOutput output = new BufferOutput();
+        serializer.serialize(null, value, output);
+        ByteBuffer serialized = ByteBuffer.allocate(output.size());
+        serialized.put(output.asByteBuffer()).flip();
+        return serialized;
+    }
+}
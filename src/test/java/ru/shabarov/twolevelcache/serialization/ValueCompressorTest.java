@@ -0,0 +1,62 @@
+package ru.shabarov.twolevelcache.serialization;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ValueCompressorTest {
+
+    private static final int THRESHOLD = 64;
+
+    private final ValueCompressor compressor = new ValueCompressor(Compression.SNAPPY, THRESHOLD);
+
+    @Test
+    public void testCompressibleValuesAreCompressed() throws Exception {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"value\",\"enabled\":true},");
+        }
+        ByteBuffer serialized = ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer stored = compressor.encode(serialized, compressor.outputOfCurrentThread());
+
+        assertTrue(compressor.isCompressed(stored));
+        assertTrue(stored.remaining() * 4 < serialized.remaining());
+        assertEquals(serialized, compressor.decode(stored));
+    }
+
+    @Test
+    public void testSmallAndDirectValuesAreRoundTripped() throws Exception {
+        BufferOutput output = compressor.outputOfCurrentThread();
+        ByteBuffer small = ByteBuffer.wrap("small".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer large = ByteBuffer.allocateDirect(THRESHOLD * 4);
+        while (large.hasRemaining()) {
+            large.put((byte) 'a');
+        }
+        large.flip();
+
+        ByteBuffer storedSmall = compressor.encode(small, output);
+        ByteBuffer storedLarge = compressor.encode(large, output);
+
+        assertFalse(compressor.isCompressed(storedSmall));
+        assertEquals(small.remaining() + 1, storedSmall.remaining());
+        assertEquals(small, compressor.decode(storedSmall));
+        assertTrue(compressor.isCompressed(storedLarge));
+        ByteBuffer directStored = ByteBuffer.allocateDirect(storedLarge.remaining());
+        directStored.put(storedLarge.duplicate()).flip();
+        assertEquals(large, compressor.decode(directStored));
+    }
+
+    @Test
+    public void testDisabledCompressionKeepsValues() throws Exception {
+        ValueCompressor disabled = new ValueCompressor(Compression.NONE, 0);
+        ByteBuffer serialized = ByteBuffer.wrap("value".getBytes(StandardCharsets.UTF_8));
+
+        assertSame(serialized, disabled.encode(serialized, disabled.outputOfCurrentThread()));
+        assertSame(serialized, disabled.decode(serialized));
+        assertFalse(disabled.isCompressed(serialized));
+    }
+}
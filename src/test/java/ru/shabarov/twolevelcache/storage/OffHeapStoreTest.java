@@ -0,0 +1,43 @@
+package ru.shabarov.twolevelcache.storage;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OffHeapStoreTest {
+
+    @Test
+    public void testEvictedValuesSurviveSlabReuse() throws Exception {
+        OffHeapStore store = new OffHeapStore(16, 8);
+        store.put("key0", bytes("value0"));
+        store.put("key1", bytes("value1"));
+        ByteBuffer stored = store.get("key0");
+
+        Map<String, ByteBuffer> evicted = store.put("key2", bytes("value2"));
+        Map<String, ByteBuffer> nextEvicted = store.put("key3", bytes("value3"));
+
+        assertEquals(1, evicted.size());
+        assertEquals("value0", string(evicted.get("key0")));
+        assertEquals("value0", string(stored));
+        assertEquals(1, nextEvicted.size());
+        assertEquals("value1", string(nextEvicted.get("key1")));
+        assertFalse(store.contains("key0"));
+        assertFalse(store.contains("key1"));
+        assertEquals("value2", string(store.get("key2")));
+        assertEquals("value3", string(store.get("key3")));
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,111 @@
+package ru.shabarov.twolevelcache.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SegmentLogStorageTest {
+
+    private static final long SEGMENT_SIZE = 256;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteOverwriteAndDelete() throws Exception {
+        try (SegmentLogStorage storage = new SegmentLogStorage(temporaryFolder.getRoot(), SEGMENT_SIZE,
+                COMPACTION_THRESHOLD)) {
+            storage.write("key0", bytes("value0"));
+            storage.write("key1", bytes("value1"));
+            storage.write("key0", bytes("value00"));
+
+            assertEquals("value00", string(storage.read("key0")));
+            assertEquals("value1", string(storage.read("key1")));
+            assertNull(storage.read("key2"));
+
+            assertTrue(storage.delete("key1"));
+            assertNull(storage.read("key1"));
+            assertEquals(1, storage.entries().size());
+
+            storage.deleteAll();
+            assertNull(storage.read("key0"));
+            assertTrue(storage.entries().isEmpty());
+        }
+    }
+
+    @Test
+    public void testRecoverAfterReopen() throws Exception {
+        File root = temporaryFolder.getRoot();
+        try (SegmentLogStorage storage = new SegmentLogStorage(root, SEGMENT_SIZE, COMPACTION_THRESHOLD)) {
+            for (int i = 0; i < 20; i++) {
+                storage.write("key" + i, bytes("value" + i));
+            }
+            storage.delete("key3");
+            storage.write("key5", bytes("updated"));
+        }
+
+        try (SegmentLogStorage storage = new SegmentLogStorage(root, SEGMENT_SIZE, COMPACTION_THRESHOLD)) {
+            assertEquals(19, storage.entries().size());
+            assertNull(storage.read("key3"));
+            assertEquals("updated", string(storage.read("key5")));
+            assertEquals("value19", string(storage.read("key19")));
+        }
+    }
+
+    @Test
+    public void testCompactionRemovesDeadSegments() throws Exception {
+        File root = temporaryFolder.getRoot();
+        try (SegmentLogStorage storage = new SegmentLogStorage(root, SEGMENT_SIZE, COMPACTION_THRESHOLD)) {
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 5; i++) {
+                    storage.write("key" + i, bytes("value" + round));
+                }
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (segmentFiles(root) > 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(segmentFiles(root) <= 4);
+            for (int i = 0; i < 5; i++) {
+                assertEquals("value19", string(storage.read("key" + i)));
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryMappedReads() throws Exception {
+        try (SegmentLogStorage storage = new SegmentLogStorage(temporaryFolder.getRoot(), SEGMENT_SIZE,
+                COMPACTION_THRESHOLD, SEGMENT_SIZE * 2)) {
+            for (int i = 0; i < 50; i++) {
+                storage.write("key" + i, bytes("value" + i));
+            }
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 50; i++) {
+                    assertEquals("value" + i, string(storage.read("key" + i)));
+                }
+            }
+        }
+    }
+
+    private static int segmentFiles(File root) {
+        String[] names = root.list((dir, name) -> name.startsWith("segment-"));
+        return names == null ? 0 : names.length;
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}